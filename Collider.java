@@ -0,0 +1,386 @@
+import java.awt.Shape;
+import java.awt.geom.*;
+
+/*
+ * Exact collision geometry of a shape, in its own coordinate system: its
+ * outline flattened to a polygon (curves within FLATNESS) and split in
+ * triangles by ear clipping, so that shapes which are not convex (the
+ * bent arm, the bottle) can be tested with the separating axis theorem.
+ *
+ * Two colliders placed by their transforms intersect when one of their
+ * triangles does: two convex polygons are disjoint if and only if the
+ * line of an edge of one of them separates them. Holes are not
+ * supported: every subpath is filled.
+ */
+public class Collider {
+
+   public static final double FLATNESS = 0.5;
+   // Scratch of sweepIntersects: the relative transforms, then the swept
+   // vertices from SWEPT
+   static final int SWEEP_SCRATCH = 24;
+   private static final int SWEPT = 12;
+
+   // x0 y0 x1 y1 x2 y2 per triangle, and their bounds
+   // (minX minY maxX maxY)
+   private final double[] triangles;
+   private final double[] triangleBounds;
+   private final Rectangle2D bounds;
+
+   public Collider(Shape s) {
+      double[] t = new double[0];
+      int count = 0;
+      double[] outline = new double[16];
+      int n = 0;
+      double[] coords = new double[6];
+      for (PathIterator i = s.getPathIterator(null, FLATNESS); ; i.next()) {
+         int type = i.isDone() ? PathIterator.SEG_MOVETO : i.currentSegment(coords);
+         if (type == PathIterator.SEG_MOVETO) {
+            int k = triangulate(outline, n, null, 0);
+            if (count + k > t.length / 6) {
+               double[] grown = new double[Math.max(2 * t.length, 6 * (count + k))];
+               System.arraycopy(t, 0, grown, 0, 6 * count);
+               t = grown;
+            }
+            count += triangulate(outline, n, t, count);
+            n = 0;
+            if (i.isDone())
+               break;
+         }
+         if (type == PathIterator.SEG_CLOSE)
+            continue;
+         if (2 * n + 2 > outline.length) {
+            double[] grown = new double[2 * outline.length];
+            System.arraycopy(outline, 0, grown, 0, 2 * n);
+            outline = grown;
+         }
+         outline[2 * n] = coords[0];
+         outline[2 * n + 1] = coords[1];
+         n++;
+      }
+      triangles = new double[6 * count];
+      System.arraycopy(t, 0, triangles, 0, triangles.length);
+      triangleBounds = new double[4 * count];
+      bounds = new Rectangle2D.Double();
+      for (int k = 0; k < count; k++) {
+         int o = 6 * k, b = 4 * k;
+         triangleBounds[b] = Math.min(triangles[o], Math.min(triangles[o + 2], triangles[o + 4]));
+         triangleBounds[b + 1] = Math.min(triangles[o + 1], Math.min(triangles[o + 3], triangles[o + 5]));
+         triangleBounds[b + 2] = Math.max(triangles[o], Math.max(triangles[o + 2], triangles[o + 4]));
+         triangleBounds[b + 3] = Math.max(triangles[o + 1], Math.max(triangles[o + 3], triangles[o + 5]));
+         Rectangle2D r = new Rectangle2D.Double(triangleBounds[b], triangleBounds[b + 1],
+               triangleBounds[b + 2] - triangleBounds[b], triangleBounds[b + 3] - triangleBounds[b + 1]);
+         if (k == 0)
+            bounds.setRect(r);
+         else
+            bounds.add(r);
+      }
+   }
+
+   public int getTriangleCount() {
+      return triangles.length / 6;
+   }
+
+   public Rectangle2D getBounds() {
+      return (Rectangle2D)bounds.clone();
+   }
+
+   double getMinX() {
+      return bounds.getMinX();
+   }
+
+   double getMinY() {
+      return bounds.getMinY();
+   }
+
+   double getMaxX() {
+      return bounds.getMaxX();
+   }
+
+   double getMaxY() {
+      return bounds.getMaxY();
+   }
+
+   /*
+    * Whether a placed by the transform at ma[oa] and b placed by the
+    * transform at mb[ob] intersect (touching counts). Transforms are 6
+    * coefficients in the order of AffineTransform.getMatrix. Allocates
+    * nothing, so it can be called from several threads.
+    */
+   public static boolean intersects(Collider a, double[] ma, int oa, Collider b, double[] mb, int ob) {
+      double det = ma[oa] * ma[oa + 3] - ma[oa + 2] * ma[oa + 1];
+      if (det == 0) {
+         double detB = mb[ob] * mb[ob + 3] - mb[ob + 2] * mb[ob + 1];
+         return detB != 0 && intersects(b, mb, ob, a, ma, oa);
+      }
+      // b to a: the inverse of a's transform times b's transform
+      double i00 = ma[oa + 3] / det, i10 = -ma[oa + 1] / det;
+      double i01 = -ma[oa + 2] / det, i11 = ma[oa] / det;
+      double i02 = -(i00 * ma[oa + 4] + i01 * ma[oa + 5]);
+      double i12 = -(i10 * ma[oa + 4] + i11 * ma[oa + 5]);
+      double r00 = i00 * mb[ob] + i01 * mb[ob + 1];
+      double r10 = i10 * mb[ob] + i11 * mb[ob + 1];
+      double r01 = i00 * mb[ob + 2] + i01 * mb[ob + 3];
+      double r11 = i10 * mb[ob + 2] + i11 * mb[ob + 3];
+      double r02 = i00 * mb[ob + 4] + i01 * mb[ob + 5] + i02;
+      double r12 = i10 * mb[ob + 4] + i11 * mb[ob + 5] + i12;
+
+      double[] tb = b.triangles;
+      for (int j = 0; j < tb.length; j += 6) {
+         double x0 = r00 * tb[j] + r01 * tb[j + 1] + r02;
+         double y0 = r10 * tb[j] + r11 * tb[j + 1] + r12;
+         double x1 = r00 * tb[j + 2] + r01 * tb[j + 3] + r02;
+         double y1 = r10 * tb[j + 2] + r11 * tb[j + 3] + r12;
+         double x2 = r00 * tb[j + 4] + r01 * tb[j + 5] + r02;
+         double y2 = r10 * tb[j + 4] + r11 * tb[j + 5] + r12;
+         if (a.intersectsTriangle(x0, y0, x1, y1, x2, y2))
+            return true;
+      }
+      return false;
+   }
+
+   /*
+    * Whether a, moving from the transform at ma0[oa0] to the one at
+    * ma1[oa1], touches b, moving from mb0[ob0] to mb1[ob1], on the way.
+    * Each triangle of a sweeps the convex hull of its two poses relative
+    * to b. This is exact for a translation; a rotation is followed along
+    * the chords of its arcs, off by r (1 - cos(angle / 2)) at a distance
+    * r from the centre: less than 0.05 pixels for a JOINT_STEP at the
+    * reach of the digger. A constant factor slower than intersects.
+    */
+   public static boolean sweepIntersects(Collider a, double[] ma0, int oa0, double[] ma1, int oa1,
+         Collider b, double[] mb0, int ob0, double[] mb1, int ob1) {
+      return sweepIntersects(a, ma0, oa0, ma1, oa1, b, mb0, ob0, mb1, ob1, new double[SWEEP_SCRATCH]);
+   }
+
+   /*
+    * The same, with a scratch array of SWEEP_SCRATCH doubles instead of
+    * allocating one
+    */
+   static boolean sweepIntersects(Collider a, double[] ma0, int oa0, double[] ma1, int oa1,
+         Collider b, double[] mb0, int ob0, double[] mb1, int ob1, double[] scratch) {
+      // a to b at both poses, and the vertices of a triangle of a at both
+      double[] relative = scratch;
+      if (!relative(ma0, oa0, mb0, ob0, relative, 0) || !relative(ma1, oa1, mb1, ob1, relative, 6))
+         return false;
+      double[] swept = scratch;
+      double[] ta = a.triangles;
+      for (int j = 0; j < ta.length; j += 6) {
+         for (int v = 0; v < 6; v += 2) {
+            double x = ta[j + v], y = ta[j + v + 1];
+            for (int pose = 0; pose < 12; pose += 6) {
+               swept[SWEPT + pose + v] = relative[pose] * x + relative[pose + 2] * y + relative[pose + 4];
+               swept[SWEPT + pose + v + 1] = relative[pose + 1] * x + relative[pose + 3] * y + relative[pose + 5];
+            }
+         }
+         if (b.intersectsHull(swept, SWEPT))
+            return true;
+      }
+      return false;
+   }
+
+   /*
+    * The inverse of the transform at mb[ob] times the one at ma[oa], into
+    * r[or]; false if the former is not invertible
+    */
+   private static boolean relative(double[] ma, int oa, double[] mb, int ob, double[] r, int or) {
+      double det = mb[ob] * mb[ob + 3] - mb[ob + 2] * mb[ob + 1];
+      if (det == 0)
+         return false;
+      double i00 = mb[ob + 3] / det, i10 = -mb[ob + 1] / det;
+      double i01 = -mb[ob + 2] / det, i11 = mb[ob] / det;
+      double i02 = -(i00 * mb[ob + 4] + i01 * mb[ob + 5]);
+      double i12 = -(i10 * mb[ob + 4] + i11 * mb[ob + 5]);
+      r[or] = i00 * ma[oa] + i01 * ma[oa + 1];
+      r[or + 1] = i10 * ma[oa] + i11 * ma[oa + 1];
+      r[or + 2] = i00 * ma[oa + 2] + i01 * ma[oa + 3];
+      r[or + 3] = i10 * ma[oa + 2] + i11 * ma[oa + 3];
+      r[or + 4] = i00 * ma[oa + 4] + i01 * ma[oa + 5] + i02;
+      r[or + 5] = i10 * ma[oa + 4] + i11 * ma[oa + 5] + i12;
+      return true;
+   }
+
+   public static boolean intersects(Collider a, AffineTransform ta, Collider b, AffineTransform tb) {
+      double[] ma = new double[6], mb = new double[6];
+      ta.getMatrix(ma);
+      tb.getMatrix(mb);
+      return intersects(a, ma, 0, b, mb, 0);
+   }
+
+   /*
+    * Whether a triangle of this collider intersects the triangle q, in
+    * the coordinate system of the collider
+    */
+   private boolean intersectsTriangle(double x0, double y0, double x1, double y1, double x2, double y2) {
+      double minX = Math.min(x0, Math.min(x1, x2)), maxX = Math.max(x0, Math.max(x1, x2));
+      double minY = Math.min(y0, Math.min(y1, y2)), maxY = Math.max(y0, Math.max(y1, y2));
+      if (maxX < bounds.getMinX() || minX > bounds.getMaxX()
+            || maxY < bounds.getMinY() || minY > bounds.getMaxY())
+         return false;
+      double[] t = triangles, tb = triangleBounds;
+      for (int i = 0, b = 0; i < t.length; i += 6, b += 4) {
+         if (maxX < tb[b] || minX > tb[b + 2] || maxY < tb[b + 1] || minY > tb[b + 3])
+            continue;
+         double a0x = t[i], a0y = t[i + 1], a1x = t[i + 2], a1y = t[i + 3], a2x = t[i + 4], a2y = t[i + 5];
+         if (separates(a0x, a0y, a1x, a1y, a2x, a2y, x0, y0, x1, y1, x2, y2)
+               || separates(a1x, a1y, a2x, a2y, a0x, a0y, x0, y0, x1, y1, x2, y2)
+               || separates(a2x, a2y, a0x, a0y, a1x, a1y, x0, y0, x1, y1, x2, y2)
+               || separates(x0, y0, x1, y1, x2, y2, a0x, a0y, a1x, a1y, a2x, a2y)
+               || separates(x1, y1, x2, y2, x0, y0, a0x, a0y, a1x, a1y, a2x, a2y)
+               || separates(x2, y2, x0, y0, x1, y1, a0x, a0y, a1x, a1y, a2x, a2y))
+            continue;
+         return true;
+      }
+      return false;
+   }
+
+   /*
+    * Whether a triangle of this collider intersects the convex hull of
+    * the 6 points of s from o, in the coordinate system of the collider.
+    * The candidate separating axes are the edges of the triangle and the
+    * lines through every two points of s, which include the edges of the
+    * hull.
+    */
+   private boolean intersectsHull(double[] s, int o) {
+      double minX = s[o], minY = s[o + 1], maxX = s[o], maxY = s[o + 1];
+      for (int v = o + 2; v < o + 12; v += 2) {
+         minX = Math.min(minX, s[v]);
+         maxX = Math.max(maxX, s[v]);
+         minY = Math.min(minY, s[v + 1]);
+         maxY = Math.max(maxY, s[v + 1]);
+      }
+      if (maxX < bounds.getMinX() || minX > bounds.getMaxX()
+            || maxY < bounds.getMinY() || minY > bounds.getMaxY())
+         return false;
+      double[] t = triangles, tb = triangleBounds;
+      triangles:
+      for (int i = 0, b = 0; i < t.length; i += 6, b += 4) {
+         if (maxX < tb[b] || minX > tb[b + 2] || maxY < tb[b + 1] || minY > tb[b + 3])
+            continue;
+         double a0x = t[i], a0y = t[i + 1], a1x = t[i + 2], a1y = t[i + 3], a2x = t[i + 4], a2y = t[i + 5];
+         if (separates(a0x, a0y, a1x, a1y, a2x, a2y, s, o)
+               || separates(a1x, a1y, a2x, a2y, a0x, a0y, s, o)
+               || separates(a2x, a2y, a0x, a0y, a1x, a1y, s, o))
+            continue;
+         for (int u = o; u < o + 12; u += 2)
+            for (int v = u + 2; v < o + 12; v += 2) {
+               double nx = s[u + 1] - s[v + 1], ny = s[v] - s[u];
+               if (nx == 0 && ny == 0)
+                  continue;
+               double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+               for (int w = o; w < o + 12; w += 2) {
+                  double d = nx * s[w] + ny * s[w + 1];
+                  lo = Math.min(lo, d);
+                  hi = Math.max(hi, d);
+               }
+               double d0 = nx * a0x + ny * a0y, d1 = nx * a1x + ny * a1y, d2 = nx * a2x + ny * a2y;
+               if (Math.max(d0, Math.max(d1, d2)) < lo || Math.min(d0, Math.min(d1, d2)) > hi)
+                  continue triangles;
+            }
+         return true;
+      }
+      return false;
+   }
+
+   /*
+    * Whether the line through a and b, an edge of a triangle whose third
+    * vertex is c, has c on one side and the 6 points of s from o strictly
+    * on the other
+    */
+   private static boolean separates(double ax, double ay, double bx, double by, double cx, double cy,
+         double[] s, int o) {
+      double ex = bx - ax, ey = by - ay;
+      double side = ex * (cy - ay) - ey * (cx - ax);
+      boolean above = true, below = true;
+      for (int v = o; v < o + 12; v += 2) {
+         double d = ex * (s[v + 1] - ay) - ey * (s[v] - ax);
+         above &= d > 0;
+         below &= d < 0;
+      }
+      return side == 0 ? above || below : side > 0 ? below : above;
+   }
+
+   /*
+    * Whether the line through a and b, an edge of a triangle whose third
+    * vertex is c, has c on one side and q0, q1, q2 strictly on the other
+    */
+   private static boolean separates(double ax, double ay, double bx, double by, double cx, double cy,
+         double q0x, double q0y, double q1x, double q1y, double q2x, double q2y) {
+      double ex = bx - ax, ey = by - ay;
+      double side = ex * (cy - ay) - ey * (cx - ax);
+      double s0 = ex * (q0y - ay) - ey * (q0x - ax);
+      double s1 = ex * (q1y - ay) - ey * (q1x - ax);
+      double s2 = ex * (q2y - ay) - ey * (q2x - ax);
+      if (side == 0)
+         // Flat triangle: on the line, q must be on either side
+         return s0 > 0 && s1 > 0 && s2 > 0 || s0 < 0 && s1 < 0 && s2 < 0;
+      return side * s0 < 0 && side * s1 < 0 && side * s2 < 0;
+   }
+
+   /*
+    * Ear clipping of the polygon of the n points of p: writes its n-2
+    * triangles in t from triangle k (counts them only when t is null),
+    * returns their number
+    */
+   private static int triangulate(double[] p, int n, double[] t, int k) {
+      // Drop the closing point repeating the first one
+      while (n > 1 && p[0] == p[2 * n - 2] && p[1] == p[2 * n - 1])
+         n--;
+      if (n < 3)
+         return 0;
+      if (t == null)
+         return n - 2;
+      int[] v = new int[n];
+      double area = 0;
+      for (int i = 0; i < n; i++) {
+         v[i] = i;
+         int j = (i + 1) % n;
+         area += p[2 * i] * p[2 * j + 1] - p[2 * j] * p[2 * i + 1];
+      }
+      double orientation = area < 0 ? -1 : 1;
+      int written = 0;
+      int m = n;
+      while (m > 3) {
+         int ear = -1;
+         for (int i = 0; i < m && ear < 0; i++) {
+            int a = v[(i + m - 1) % m], b = v[i], c = v[(i + 1) % m];
+            if (orientation * cross(p, a, b, c) <= 0)
+               continue;
+            boolean empty = true;
+            for (int j = 0; j < m && empty; j++) {
+               int d = v[j];
+               if (d != a && d != b && d != c && inside(p, a, b, c, d, orientation))
+                  empty = false;
+            }
+            if (empty)
+               ear = i;
+         }
+         if (ear < 0)
+            // Self-intersecting or degenerate: clip any vertex
+            ear = 0;
+         write(p, v[(ear + m - 1) % m], v[ear], v[(ear + 1) % m], t, k + written++);
+         System.arraycopy(v, ear + 1, v, ear, m - ear - 1);
+         m--;
+      }
+      write(p, v[0], v[1], v[2], t, k + written);
+      return n - 2;
+   }
+
+   private static double cross(double[] p, int a, int b, int c) {
+      return (p[2 * b] - p[2 * a]) * (p[2 * c + 1] - p[2 * a + 1])
+            - (p[2 * b + 1] - p[2 * a + 1]) * (p[2 * c] - p[2 * a]);
+   }
+
+   private static boolean inside(double[] p, int a, int b, int c, int d, double orientation) {
+      return orientation * cross(p, a, b, d) >= 0 && orientation * cross(p, b, c, d) >= 0
+            && orientation * cross(p, c, a, d) >= 0;
+   }
+
+   private static void write(double[] p, int a, int b, int c, double[] t, int k) {
+      t[6 * k] = p[2 * a];
+      t[6 * k + 1] = p[2 * a + 1];
+      t[6 * k + 2] = p[2 * b];
+      t[6 * k + 3] = p[2 * b + 1];
+      t[6 * k + 4] = p[2 * c];
+      t[6 * k + 5] = p[2 * c + 1];
+   }
+}
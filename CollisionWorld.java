@@ -0,0 +1,236 @@
+import java.awt.geom.*;
+
+/*
+ * Collision detection between many bodies: the parts of a digger, the
+ * props of the scene (the bottle) and any amount of debris.
+ *
+ * A body is a Collider placed in the world by a transform, with a
+ * category (a bit) and the mask of the categories it collides with; only
+ * the pairs where one body's mask has the category of the other are
+ * tested, e.g. the bucket against the props and not the debris against
+ * each other.
+ *
+ * Broad phase: sweep and prune along x over the world bounding boxes.
+ * The bodies stay sorted by the left of their boxes from one call to the
+ * next, and are sorted again by insertion, which is linear when they
+ * moved little since. A body is then only compared with the following
+ * ones until their left passes its right.
+ * Narrow phase: the exact test of Collider.intersects.
+ *
+ * Bodies moved with moveTo are tested along their move (continuous
+ * collision detection, with Collider.sweepIntersects), so that a fast
+ * body does not pass through another one between two calls: their boxes
+ * cover both poses until the next findContacts.
+ */
+public class CollisionWorld {
+
+   /*
+    * Called for each pair in contact: the mask of a has the category of b
+    */
+   public interface ContactListener {
+      void contact(int a, int b);
+   }
+
+   private Collider[] colliders = new Collider[16];
+   private int[] category = new int[16];
+   private int[] mask = new int[16];
+   private double[] transform = new double[6 * 16];  // as getMatrix
+   private double[] previous = new double[6 * 16];   // before moveTo
+   private boolean[] moving = new boolean[16];
+   private double[] box = new double[4 * 16];        // minX minY maxX maxY
+   private int[] order = new int[16];                // by box minX
+   private double[] sweepScratch = new double[Collider.SWEEP_SCRATCH];
+   private int size;
+
+   /*
+    * Add a body placed by the identity transform, return its index
+    */
+   public int add(Collider c, int category, int mask) {
+      if (size == colliders.length) {
+         int n = 2 * size;
+         Collider[] cs = new Collider[n];
+         System.arraycopy(colliders, 0, cs, 0, size);
+         colliders = cs;
+         this.category = grow(this.category, n);
+         this.mask = grow(this.mask, n);
+         order = grow(order, n);
+         double[] t = new double[6 * n];
+         System.arraycopy(transform, 0, t, 0, 6 * size);
+         transform = t;
+         t = new double[6 * n];
+         System.arraycopy(previous, 0, t, 0, 6 * size);
+         previous = t;
+         boolean[] m = new boolean[n];
+         System.arraycopy(moving, 0, m, 0, size);
+         moving = m;
+         double[] b = new double[4 * n];
+         System.arraycopy(box, 0, b, 0, 4 * size);
+         box = b;
+      }
+      int i = size++;
+      colliders[i] = c;
+      this.category[i] = category;
+      this.mask[i] = mask;
+      order[i] = i;
+      transform[6 * i] = transform[6 * i + 3] = 1;
+      updateBox(i);
+      return i;
+   }
+
+   private static int[] grow(int[] a, int n) {
+      int[] b = new int[n];
+      System.arraycopy(a, 0, b, 0, a.length);
+      return b;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public Collider getCollider(int body) {
+      return colliders[body];
+   }
+
+   /*
+    * Place body by t, without testing the way from its previous place
+    */
+   public void setTransform(int body, AffineTransform t) {
+      moving[body] = false;
+      set(body, t);
+   }
+
+   /*
+    * Place body by the 6 coefficients of m from offset
+    */
+   public void setTransform(int body, double[] m, int offset) {
+      moving[body] = false;
+      System.arraycopy(m, offset, transform, 6 * body, 6);
+      updateBox(body);
+   }
+
+   /*
+    * Move body to t: the next findContacts tests the way from where it
+    * was after the previous one
+    */
+   public void moveTo(int body, AffineTransform t) {
+      if (!moving[body]) {
+         System.arraycopy(transform, 6 * body, previous, 6 * body, 6);
+         moving[body] = true;
+      }
+      set(body, t);
+   }
+
+   private void set(int body, AffineTransform t) {
+      int o = 6 * body;
+      transform[o] = t.getScaleX();
+      transform[o + 1] = t.getShearY();
+      transform[o + 2] = t.getShearX();
+      transform[o + 3] = t.getScaleY();
+      transform[o + 4] = t.getTranslateX();
+      transform[o + 5] = t.getTranslateY();
+      updateBox(body);
+   }
+
+   public Rectangle2D getBounds(int body) {
+      int b = 4 * body;
+      return new Rectangle2D.Double(box[b], box[b + 1], box[b + 2] - box[b], box[b + 3] - box[b + 1]);
+   }
+
+   /*
+    * World bounding box: the local bounds of the collider through its
+    * transform, and its previous one while it moves
+    */
+   private void updateBox(int body) {
+      int b = 4 * body;
+      box[b] = box[b + 1] = Double.POSITIVE_INFINITY;
+      box[b + 2] = box[b + 3] = Double.NEGATIVE_INFINITY;
+      addBox(body, transform);
+      if (moving[body])
+         addBox(body, previous);
+   }
+
+   private void addBox(int body, double[] m) {
+      Collider c = colliders[body];
+      int o = 6 * body, b = 4 * body;
+      double m00 = m[o], m10 = m[o + 1], m01 = m[o + 2];
+      double m11 = m[o + 3], m02 = m[o + 4], m12 = m[o + 5];
+      double cx = (c.getMinX() + c.getMaxX()) / 2, cy = (c.getMinY() + c.getMaxY()) / 2;
+      double hx = (c.getMaxX() - c.getMinX()) / 2, hy = (c.getMaxY() - c.getMinY()) / 2;
+      double x = m00 * cx + m01 * cy + m02, y = m10 * cx + m11 * cy + m12;
+      double ex = Math.abs(m00) * hx + Math.abs(m01) * hy;
+      double ey = Math.abs(m10) * hx + Math.abs(m11) * hy;
+      box[b] = Math.min(box[b], x - ex);
+      box[b + 1] = Math.min(box[b + 1], y - ey);
+      box[b + 2] = Math.max(box[b + 2], x + ex);
+      box[b + 3] = Math.max(box[b + 3], y + ey);
+   }
+
+   /*
+    * Whether bodies a and b intersect, or met on their way if they are
+    * moving, whatever their categories
+    */
+   public boolean intersects(int a, int b) {
+      if (!overlap(a, b))
+         return false;
+      if (!moving[a] && !moving[b])
+         return Collider.intersects(colliders[a], transform, 6 * a, colliders[b], transform, 6 * b);
+      double[] pa = moving[a] ? previous : transform, pb = moving[b] ? previous : transform;
+      return Collider.sweepIntersects(colliders[a], pa, 6 * a, transform, 6 * a,
+            colliders[b], pb, 6 * b, transform, 6 * b, sweepScratch);
+   }
+
+   private boolean overlap(int a, int b) {
+      int p = 4 * a, q = 4 * b;
+      return box[p] <= box[q + 2] && box[q] <= box[p + 2]
+            && box[p + 1] <= box[q + 3] && box[q + 1] <= box[p + 3];
+   }
+
+   /*
+    * Report every pair of bodies in contact whose categories collide to
+    * listener (may be null), return their number. The moves are then
+    * over: the moving bodies stay where they are.
+    */
+   public int findContacts(ContactListener listener) {
+      sort();
+      int contacts = 0;
+      for (int i = 0; i < size; i++) {
+         int a = order[i];
+         double right = box[4 * a + 2];
+         for (int j = i + 1; j < size; j++) {
+            int b = order[j];
+            if (box[4 * b] > right)
+               break;
+            boolean ab = (mask[a] & category[b]) != 0;
+            boolean ba = (mask[b] & category[a]) != 0;
+            if (!ab && !ba || !intersects(a, b))
+               continue;
+            contacts++;
+            if (listener != null) {
+               if (ab)
+                  listener.contact(a, b);
+               else
+                  listener.contact(b, a);
+            }
+         }
+      }
+      for (int i = 0; i < size; i++)
+         if (moving[i]) {
+            moving[i] = false;
+            updateBox(i);
+         }
+      return contacts;
+   }
+
+   private void sort() {
+      for (int i = 1; i < size; i++) {
+         int body = order[i];
+         double left = box[4 * body];
+         int j = i - 1;
+         while (j >= 0 && box[4 * order[j]] > left) {
+            order[j + 1] = order[j];
+            j--;
+         }
+         order[j + 1] = body;
+      }
+   }
+}
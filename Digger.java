@@ -15,6 +15,7 @@ import java.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
+import javax.swing.event.*;
 
 /*
  * Digger application class that creates the main frame
@@ -23,6 +24,8 @@ public class Digger extends JFrame {
    
    public static final int FRAME_WIDTH = 900;
    public static final int FRAME_HEIGHT = 600;
+   // Positions of the replay scrub slider, from the start to the end
+   private static final int SCRUB_STEPS = 1000;
 
 
    private DrawingPanel panel;
@@ -65,6 +68,24 @@ public class Digger extends JFrame {
       menu.add(item);
       item.addActionListener(new PlayListener());
 
+      JMenu speed = new JMenu("Replay speed");
+      menu.add(speed);
+      ButtonGroup speeds = new ButtonGroup();
+      double[] factors = {0.25, 1, 4, 16, 64};
+      for (double f: factors) {
+         JRadioButtonMenuItem s = new JRadioButtonMenuItem(f + "x");
+         speeds.add(s);
+         speed.add(s);
+         s.addActionListener(new SpeedListener(f));
+         s.setSelected(f == 1);
+      }
+
+      JMenu position = new JMenu("Replay position");
+      menu.add(position);
+      JSlider scrub = new JSlider(0, SCRUB_STEPS, 0);
+      position.add(scrub);
+      scrub.addChangeListener(new ScrubListener(scrub));
+
       JMenuItem item2 = new JMenuItem("Quit");
       // This accelerator does not handle the upper-case version: 'Q' 	
       // Alternate implementation: addKeyListener with new KeyAdapter
@@ -81,6 +102,35 @@ public class Digger extends JFrame {
       debug.addActionListener(new DebugListener(debug));
       debug.setSelected(true);
 
+      JMenuItem fleet = new JMenuItem("Add 100 diggers");
+      menu2.add(fleet);
+      fleet.addActionListener(new FleetListener());
+
+      JMenuItem load = new JMenuItem("Load " + DrawingPanel.FLEET_FILE);
+      menu2.add(load);
+      load.addActionListener(new LoadFleetListener());
+
+      JRadioButtonMenuItem animate = new JRadioButtonMenuItem("Animate fleet");
+      menu2.add(animate);
+      animate.addActionListener(new AnimateListener(animate));
+      animate.setSelected(false);
+
+      JRadioButtonMenuItem clouds = new JRadioButtonMenuItem("Animate clouds");
+      menu2.add(clouds);
+      clouds.addActionListener(new CloudsListener(clouds));
+      clouds.setSelected(false);
+
+      JMenu rate = new JMenu("Refresh rate");
+      menu2.add(rate);
+      ButtonGroup rates = new ButtonGroup();
+      for (int r: FrameScheduler.RATES) {
+         JRadioButtonMenuItem s = new JRadioButtonMenuItem(r + " Hz");
+         rates.add(s);
+         rate.add(s);
+         s.addActionListener(new RateListener(r));
+         s.setSelected(r == FrameScheduler.DEFAULT_RATE);
+      }
+
       return menuBar;
 
    }
@@ -113,7 +163,7 @@ public class Digger extends JFrame {
 
    
   /*
-   * Four inner classes that implement ActionListeners for the menus 
+   * Eleven inner classes that implement the listeners of the menus 
    * of the frame
    */ 
    class RecordListener implements ActionListener { 
@@ -141,6 +191,32 @@ public class Digger extends JFrame {
       }
    }
 
+   class SpeedListener implements ActionListener { 
+      double factor;
+
+      public SpeedListener(double f) {
+         factor = f;
+      }
+
+      public void actionPerformed(ActionEvent e) {
+         panel.setReplaySpeed(factor);
+      }
+   }
+
+   class ScrubListener implements ChangeListener { 
+      JSlider control;
+
+      public ScrubListener(JSlider c) {
+         control = c;
+      }
+
+      public void stateChanged(ChangeEvent e) {
+         long duration = panel.getReplayDuration();
+         if (duration >= 0)
+            panel.seekReplay(duration * control.getValue() / SCRUB_STEPS);
+      }
+   }
+
    class QuitListener implements ActionListener { 
     
       public void actionPerformed(ActionEvent e) {
@@ -150,6 +226,56 @@ public class Digger extends JFrame {
    }
 
 
+   class FleetListener implements ActionListener { 
+    
+      public void actionPerformed(ActionEvent e) {
+         panel.addDiggers(100);
+      }
+   }
+
+   class LoadFleetListener implements ActionListener { 
+    
+      public void actionPerformed(ActionEvent e) {
+         panel.loadFleet(DrawingPanel.FLEET_FILE);
+      }
+   }
+
+   class AnimateListener implements ActionListener { 
+      JRadioButtonMenuItem control;
+
+      public AnimateListener(JRadioButtonMenuItem c) {
+         control = c;
+      }
+    
+      public void actionPerformed(ActionEvent e) {
+         panel.setFleetSimulated(control.isSelected());
+      }
+   }
+
+   class CloudsListener implements ActionListener { 
+      JRadioButtonMenuItem control;
+
+      public CloudsListener(JRadioButtonMenuItem c) {
+         control = c;
+      }
+    
+      public void actionPerformed(ActionEvent e) {
+         panel.setCloudsAnimated(control.isSelected());
+      }
+   }
+
+   class RateListener implements ActionListener { 
+      int rate;
+
+      public RateListener(int r) {
+         rate = r;
+      }
+
+      public void actionPerformed(ActionEvent e) {
+         panel.setRefreshRate(rate);
+      }
+   }
+
    class DebugListener implements ActionListener { 
       JRadioButtonMenuItem control;
 
@@ -0,0 +1,196 @@
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Display list of independent hierarchical models (e.g. diggers), each
+ * made of a Model (a root MyRectangle, or a rig of a SceneStore) and the
+ * transform placing it on screen.
+ *
+ * Entries are painted in insertion order, so the last one is on top.
+ * A uniform grid of CELL_SIZE pixels indexes the screen bounds of every
+ * entry: picking only tests the entries registered in the cell under the
+ * point instead of the whole list.
+ * The bounds are given by the owner of the list, which must call
+ * setBounds again whenever an entry moves or changes shape.
+ */
+public class DisplayList {
+
+   public static final int CELL_SIZE = 64;
+
+   public static class Entry {
+      private Model root;
+      private AffineTransform transform;
+      private Rectangle bounds = new Rectangle();
+      private int order;
+      // Given by the owner of the list, e.g. the index of a fleet digger
+      private int index;
+      // Range of grid cells the entry is registered in
+      private int cx0, cy0, cx1, cy1;
+
+      Entry(Model root, AffineTransform transform, int order, int index) {
+         this.root = root;
+         this.transform = transform;
+         this.order = order;
+         this.index = index;
+      }
+
+      public Model getRoot() {
+         return root;
+      }
+
+      /*
+       * The live transform of the entry: call setBounds after changing it
+       */
+      public AffineTransform getTransform() {
+         return transform;
+      }
+
+      public Rectangle getBounds() {
+         return bounds;
+      }
+
+      /*
+       * The index given to add, -1 if none
+       */
+      public int getIndex() {
+         return index;
+      }
+   }
+
+   private ArrayList<Entry> entries = new ArrayList<Entry>();
+   private HashMap<Cell, ArrayList<Entry>> grid = new HashMap<Cell, ArrayList<Entry>>();
+   // Scratch point of pick, in the coordinate system of an entry, and
+   // scratch key of the grid lookups
+   private Point2D.Double pickPoint = new Point2D.Double();
+   private Cell cellKey = new Cell();
+
+   /*
+    * Key of a cell of the grid: the lookups set the fields of cellKey,
+    * only the cells put in the grid are allocated
+    */
+   private static final class Cell {
+      int cx, cy;
+
+      Cell() {
+      }
+
+      Cell(int cx, int cy) {
+         this.cx = cx;
+         this.cy = cy;
+      }
+
+      public int hashCode() {
+         return 31 * cx + cy;
+      }
+
+      public boolean equals(Object o) {
+         return o instanceof Cell && ((Cell)o).cx == cx && ((Cell)o).cy == cy;
+      }
+   }
+
+   public Entry add(Model root, AffineTransform transform, Rectangle bounds) {
+      return add(root, transform, bounds, -1);
+   }
+
+   /*
+    * Add an entry with the index of the model for the owner, e.g. so that
+    * the owner finds its entries without searching its own lists
+    */
+   public Entry add(Model root, AffineTransform transform, Rectangle bounds, int index) {
+      Entry e = new Entry(root, transform, entries.size(), index);
+      entries.add(e);
+      e.bounds.setBounds(bounds);
+      register(e);
+      return e;
+   }
+
+   public int size() {
+      return entries.size();
+   }
+
+   public Entry get(int i) {
+      return entries.get(i);
+   }
+
+   /*
+    * Update the screen bounds of e and its cells in the grid
+    */
+   public void setBounds(Entry e, Rectangle bounds) {
+      if (e.bounds.equals(bounds))
+         return;
+      int cx0 = cell(bounds.x), cy0 = cell(bounds.y);
+      int cx1 = cell(bounds.x + bounds.width), cy1 = cell(bounds.y + bounds.height);
+      e.bounds.setBounds(bounds);
+      if (cx0 == e.cx0 && cy0 == e.cy0 && cx1 == e.cx1 && cy1 == e.cy1)
+         return;
+      unregister(e);
+      register(e);
+   }
+
+   private static int cell(int c) {
+      return Math.floorDiv(c, CELL_SIZE);
+   }
+
+   private Cell key(int cx, int cy) {
+      cellKey.cx = cx;
+      cellKey.cy = cy;
+      return cellKey;
+   }
+
+   private void register(Entry e) {
+      e.cx0 = cell(e.bounds.x);
+      e.cy0 = cell(e.bounds.y);
+      e.cx1 = cell(e.bounds.x + e.bounds.width);
+      e.cy1 = cell(e.bounds.y + e.bounds.height);
+      for (int cx = e.cx0; cx <= e.cx1; cx++)
+         for (int cy = e.cy0; cy <= e.cy1; cy++) {
+            ArrayList<Entry> list = grid.get(key(cx, cy));
+            if (list == null) {
+               list = new ArrayList<Entry>(4);
+               grid.put(new Cell(cx, cy), list);
+            }
+            list.add(e);
+         }
+   }
+
+   private void unregister(Entry e) {
+      for (int cx = e.cx0; cx <= e.cx1; cx++)
+         for (int cy = e.cy0; cy <= e.cy1; cy++) {
+            ArrayList<Entry> list = grid.get(key(cx, cy));
+            list.remove(e);
+            if (list.isEmpty())
+               grid.remove(key(cx, cy));
+         }
+   }
+
+   /*
+    * The topmost entry which hierarchy contains the screen point, with
+    * the selected part in picked[0]; null if none
+    */
+   public Entry pick(Point2D p, Object[] picked) {
+      ArrayList<Entry> list = grid.get(key(cell((int)Math.floor(p.getX())),
+            cell((int)Math.floor(p.getY()))));
+      if (list == null)
+         return null;
+      Entry best = null;
+      Point2D local = pickPoint;
+      for (int i = 0; i < list.size(); i++) {
+         Entry e = list.get(i);
+         if ((best != null && e.order < best.order) || !e.bounds.contains(p))
+            continue;
+         try {
+            e.transform.inverseTransform(p, local);
+         } catch (NoninvertibleTransformException er) {
+            continue;
+         }
+         Object r = e.root.selectedShape(local);
+         if (r != null) {
+            best = e;
+            picked[0] = r;
+         }
+      }
+      return best;
+   }
+}
@@ -0,0 +1,55 @@
+import java.awt.*;
+import java.awt.event.*;
+
+/*
+ * The drag events of one frame, integrated by DrawingPanel into a single
+ * update of the pose, and recorded in an EventLog instead of the events.
+ *
+ * The position is the one of the mouse after the last event. When an arm
+ * is dragged, steps is the number of JOINT_STEPs it turned (within its
+ * limits), and min and max the lowest and highest step it reached on the
+ * way, all relative to the joint before the events. Other drags move by
+ * the position minus the one of the mouse before the events.
+ */
+public class DragDelta extends MouseEvent {
+
+   private static final long serialVersionUID = 1L;
+
+   public static final int DRAG_DELTA = AWTEvent.RESERVED_ID_MAX + 1;
+
+   private final int steps;
+   private final int min;
+   private final int max;
+
+   public DragDelta(Component source, long when, int x, int y, int steps, int min, int max) {
+      // Screen coordinates given as for EventLog.getEvent
+      super(source, DRAG_DELTA, when, 0, x, y, x, y, 0, false, NOBUTTON);
+      this.steps = steps;
+      this.min = min;
+      this.max = max;
+   }
+
+   public int getSteps() {
+      return steps;
+   }
+
+   public int getMin() {
+      return min;
+   }
+
+   public int getMax() {
+      return max;
+   }
+
+   /*
+    * steps, min and max in the bytes of an int, as recorded in the
+    * modifiers of an EventLog record
+    */
+   public int pack() {
+      return (steps & 0xFF) << 16 | (min & 0xFF) << 8 | (max & 0xFF);
+   }
+
+   public static DragDelta unpack(Component source, long when, int x, int y, int packed) {
+      return new DragDelta(source, when, x, y, (byte)(packed >> 16), (byte)(packed >> 8), (byte)packed);
+   }
+}
@@ -1,7 +1,10 @@
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.geom.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.util.ArrayList;
+import java.util.Random;
 
 import javax.swing.*;
 
@@ -13,8 +16,11 @@ import java.io.*;
  * - to draw the hierarchical geometry of a digger and 
  * - to respond to user mouse events
  * 
- * As a single model is used a display list is unnecessary.
- * (If we were to manipulate many diggers a display list would be appropriate.)
+ * The digger manipulated by the user is the first entry of a display
+ * list, which can hold many more diggers (a fleet): see DisplayList.
+ * Fleet diggers are rigs of a SceneStore, while the user's digger stays a
+ * MyRectangle hierarchy. They can be selected and moved as a whole, and
+ * animated by a FleetSimulation running off the event dispatch thread.
  * 
  * However this single model, a digger, is complex: it is
  * a hierarchical model, made of multiple shapes, where each shape
@@ -38,9 +44,12 @@ import java.io.*;
  
  */
 
- class DrawingPanel extends JComponent implements MouseListener, MouseMotionListener, KeyListener {
+ class DrawingPanel extends JComponent implements MouseListener, MouseMotionListener, KeyListener,
+       ReplayEngine.Listener, FleetSimulation.Listener, FrameScheduler.Client {
     
    private static final String RECORD_FILE = "events";
+   // RigFile of diggers added to the fleet by the Options menu
+   static final String FLEET_FILE = "fleet.rig";
 
    private final static Color BG = Color.WHITE;
    private final static Color BLUE = Color.BLUE;
@@ -63,6 +72,23 @@ import java.io.*;
    // Handle transformation on the entire object, i.e. the digger
    private AffineTransform objectTransform = new AffineTransform();
 
+   // All the diggers painted; the first entry is the digger above
+   private DisplayList displayList = new DisplayList();
+   private DisplayList.Entry mainEntry;
+   // Fleet digger selected, when selected == FLEET
+   private DisplayList.Entry selectedEntry;
+   private Random fleetRandom = new Random(341);
+   // Storage of the fleet diggers, which are only moved as a whole
+   private SceneStore fleet = new SceneStore();
+   private ArrayList<SceneStore.Rig> fleetRigs = new ArrayList<SceneStore.Rig>();
+   // Rig copied by addDiggers, not displayed
+   private SceneStore.Rig fleetDigger;
+   private ArrayList<DisplayList.Entry> fleetEntries = new ArrayList<DisplayList.Entry>();
+   // Animation of the fleet, null when not animated
+   private FleetSimulation simulation;
+   private boolean fleetGrabbing;
+   private Rectangle fleetBounds = new Rectangle();
+
    // Needed to reposition before replay
    // (Not possible across program execution as not stored in text file:
    // do your recording from the initial digger location.)
@@ -70,7 +96,7 @@ import java.io.*;
 
    private boolean rotated;
    
-   private int frameNumber; // For animation, increases by 1 in each frame.
+   private int frameNumber; // Step of the cloud animation, increases by 1 every CLOUD_PERIOD ms.
    
    // Used for simple selection
    // Click with button1 anywhere on JComponent selects the entire object (simple minded)
@@ -79,24 +105,160 @@ import java.io.*;
    private static final int ALL_OBJECT = -1;
    private static final int BASE = ALL_OBJECT;
    private static final int ROOT = ALL_OBJECT;
-   private static final int SCALE_ARM = 1;
-   private static final int BENT_ARM = 2;
-   private static final int BUCKET = 3;
+   static final int SCALE_ARM = 1;
+   static final int BENT_ARM = 2;
+   static final int BUCKET = 3;
+   private static final int FLEET = 4;
    private int selected = NONE;
    private int lastX, lastY;
    private int rotateNumScale = 0;
    private int rotateNumBent = 0;
    private int rotateNumBucket = 0;
    private int scaleNumArm = 0;
+   // Each step of a joint counter rotates the joint by JOINT_STEP, within
+   // these limits of the counters (also used by FleetSimulation)
+   static final double JOINT_STEP = Math.PI/90.0;
+   static final int SCALE_MIN = -35, SCALE_MAX = 5;
+   static final int BENT_MIN = -1, BENT_MAX = 35;
+   static final int BUCKET_MIN = -65, BUCKET_MAX = 25;
+   // The drag events since the last frame, integrated but not applied
+   // yet: the position of the mouse after them, and the counter of the
+   // selected joint after them and the lowest and highest it reached
+   // (see integrateDrag)
+   private boolean dragPending;
+   private int dragX, dragY;
+   private int dragCount, dragMin, dragMax;
+   private long dragWhen;
+   // Steps of the joint between two tests of the bucket along a drag: one,
+   // as when each drag is applied. The sweep follows a rotation along its
+   // chord, which over more steps misses a bucket grazing the bottle
+   private static final int SWEEP_STEPS = 1;
   private static final int WHEEL=70;
 
+   // Colors, strokes and shapes of the scene, shared so that painting a
+   // frame does not allocate
+   private final static Color SKY = new Color(200,200,255);
+   private final static Color SAND = new Color(251,193,115);
+   private final static BasicStroke WINDOW_STROKE = new BasicStroke(3);
+   private final static BasicStroke ROOF_STROKE = new BasicStroke(10);
+   private final static Rectangle2D CAB = new Rectangle2D.Double(71, 35, 50, 20);
+   private final static Polygon WINDOW = new Polygon(
+         new int[] {20, 0, 180, 80}, new int[] {-WHEEL*2, 40, 40, -WHEEL*2}, 4);
+   private final static Arc2D[] DUNES = {
+      new Arc2D.Double(100, 70, 80, 100, 0, 180, Arc2D.PIE),
+      new Arc2D.Double(700, 70, 120, 100, 0, 180, Arc2D.PIE),
+      new Arc2D.Double(220, 70, 80, 100, 0, 180, Arc2D.PIE),
+      new Arc2D.Double(400, 80, 100, 150, 0, 180, Arc2D.PIE)
+   };
+   private final static Ellipse2D[] TYRES = {
+      new Ellipse2D.Double(15,WHEEL-25,80,80),
+      new Ellipse2D.Double(155,WHEEL,60,60)
+   };
+   private final static Ellipse2D[] HUBS = {
+      new Ellipse2D.Double(25,WHEEL-15,60,60),
+      new Ellipse2D.Double(165,WHEEL+10,40,40)
+   };
+   private final static Ellipse2D[] STATIC_CLOUDS = {
+      new Ellipse2D.Double(500,10,10,10),
+      new Ellipse2D.Double(505,5,15,15),
+      new Ellipse2D.Double(515,10,10,10),
+      new Ellipse2D.Double(200,20,15,15),
+      new Ellipse2D.Double(210,10,25,25),
+      new Ellipse2D.Double(230,20,15,15)
+   };
+   private final static Ellipse2D[] MOVING_CLOUDS = {
+      new Ellipse2D.Double(5,10,10,10),
+      new Ellipse2D.Double(10,5,15,15),
+      new Ellipse2D.Double(20,10,10,10),
+      new Ellipse2D.Double(100,20,10,10),
+      new Ellipse2D.Double(105,15,15,15),
+      new Ellipse2D.Double(115,20,10,10)
+   };
+   // The same shapes as paths which iterator is not allocated when they
+   // are painted, as the Java 2D shapes do. Per panel, since a PaintPath
+   // is painted by one thread at a time
+   private final PaintPath window = new PaintPath(WINDOW);
+   private final PaintPath roof = new PaintPath(new Line2D.Double(20,-WHEEL*2,80,-WHEEL*2));
+   private final PaintPath[] tyres = paintPaths(TYRES);
+   private final PaintPath[] hubs = paintPaths(HUBS);
+   private final PaintPath[] movingClouds = paintPaths(MOVING_CLOUDS);
+   private PaintPath bottlePath;
+
+   // Collision detection between the digger and the bottle
+   private static final int PART = 1, BUCKET_PART = 2, PROP = 4;
+   private CollisionWorld collisions;
+   private MyRectangle[] collisionShapes;
+   private int[] shapeBodies;
+   private int bottleBody;
+   private AffineTransform collisionAT = new AffineTransform();
+   private boolean bucketOnBottle;
+   private CollisionWorld.ContactListener grabContact = new CollisionWorld.ContactListener() {
+      public void contact(int a, int b) {
+         if (b == bottleBody)
+            bucketOnBottle = true;
+      }
+   };
+
+   // Scratch objects of paintComponent
+   private Rectangle paintClip = new Rectangle();
+   private AffineTransform frameAT;
+   private AffineTransform diggerAT = new AffineTransform();
+   // Scratch objects of mousePressed: the point, the part picked and its
+   // bounds, and of screenBounds
+   private Point2D.Double pressPoint = new Point2D.Double();
+   private Object[] picked = new Object[1];
+   private Rectangle2D.Double pressWorld = new Rectangle2D.Double();
+   private Rectangle pressBounds = new Rectangle();
+   private double[] boundsCorners = new double[8];
+
    // Used for recording and replay
-   private ObjectOutputStream out;
    private boolean isRecording = false;
-   // Record some mouse events, may want to also record more according to
-   // user interaction choices/definitions
-   private ArrayList<MouseEvent> events;
+   // Record mouse presses and drags and key presses, streamed to
+   // RECORD_FILE in the EventLog format while recording
+   private EventRecorder recorder;
+   // Current replay, with the pose of the digger when it started.
+   // The replay thread executes the events on replayModel, an off-screen
+   // panel of its own, and publishes its pose after each frame in
+   // replayPoses, from which the event dispatch thread takes the latest
+   // one: this panel is only changed and painted on the EDT.
+   private ReplayEngine replayer;
+   private Thread replayThread;
+   private Pose replayStart;
+   private double replaySpeed = 1;
+   private DrawingPanel replayModel;
+   private TripleBuffer<Pose> replayPoses;
+   // Set on a replayModel: where its poses go
+   private DrawingPanel replayDisplay;
    
+   // Static backdrop (sky, sand, dunes and stationary clouds), rendered
+   // once in an accelerated image and redrawn only when the image is lost
+   // or the panel is resized
+   private VolatileImage background;
+   // Used instead when the panel is not displayed (off-screen rendering)
+   private BufferedImage offscreenBackground;
+
+   // When animated (off by default, so an idle panel schedules no frame),
+   // the clouds move one step every CLOUD_PERIOD ms, on the frames of the
+   // shared FrameScheduler; nothing is scheduled while they are stopped or
+   // the panel is not showing. cloudStart is the time of frame 0.
+   static final int CLOUD_PERIOD = 60;
+   private boolean cloudsAnimated;
+   private boolean cloudsMoving;
+   private long cloudStart;
+
+   // Only the screen areas that changed are repainted: moved parts of the
+   // digger (old and new bounds), the moving-cloud band and the bottle.
+   // Parts drawn by drawWindow and drawWheel, in digger coordinates
+   private static final Rectangle2D CHASSIS = new Rectangle2D.Double(-5, -150, 230, 285);
+   // Margin around shape bounds covering strokes and antialiasing
+   private static final int STROKE_PAD = 12;
+   private int cloudFrame;
+
+   // Area repainted, in pixels, measured over one second windows
+   private long pixelsPainted;
+   private long pixelsWindowStart = System.currentTimeMillis();
+   private volatile long pixelsPerSecond;
+
    private static RenderingHints rh = new RenderingHints(
 		RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
@@ -111,15 +273,17 @@ import java.io.*;
       init();
       objectTransform.translate(Digger.FRAME_WIDTH/3, 2*Digger.FRAME_HEIGHT/3);//100.0, 100.0);
       rotated = false;
+      mainEntry = displayList.add(displayRoot, objectTransform, diggerBounds());
 
-      
-       new Timer(60,new ActionListener() {
-          public void actionPerformed(ActionEvent evt) {
-             frameNumber++;
-             repaint();
-          }
-       }).start();
-       addMouseListener(this);
+
+      // Animated clouds start moving when the panel is shown
+      addHierarchyListener(new HierarchyListener() {
+         public void hierarchyChanged(HierarchyEvent e) {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && isShowing())
+               requestFrame(0);
+         }
+      });
+      addMouseListener(this);
    }
 
    /*
@@ -132,133 +296,464 @@ import java.io.*;
     * of the 2 rectangles relate
     */ 
    public void init() {
-      AffineTransform trans = new AffineTransform();
+      displayRoot = makeDigger();
+      base = displayRoot.getChild();
+      scalarArm = base.getChild();
+      bentArm = scalarArm.getChild();
+      bucket = bentArm.getChild();
+      makeBottle();
+      makeCollisions();
+   }
 
-      displayRoot =  new MyRectangle(trans, 200, 100, YELLOW, null, 5, ROOT);
-      
+   /*
+    * The digger, in the text form of a RigFile. The bent arm has a preset
+    * outline (sides 6), so its width and height are not used. Each shape
+    * is anchored on its parent, e.g. the base at (75, 25) on the body,
+    * rotated upward by 90 degrees.
+    */
+   static final String DIGGER_RIG =
+         "#    name      type sides width height color  parent      x    y angle\n"
+       + "rig digger\n"
+       + "node root      -1   5     200   100    ffff00 -           0    0    0\n"
+       + "node base      -1   4     100   40     ffff00 root       75   25  -90\n"
+       + "node scalarArm  1   4     150   40     ffff00 base       95    0   45\n"
+       + "node bentArm    2   6     0     0      ffff00 scalarArm 135    0    0\n"
+       + "node bucket     3   0     50    50     c0c0c0 bentArm    40  150    0\n"
+       + "end\n";
+   private static final RigFile.Definition DIGGER = RigFile.parseDefinition(DIGGER_RIG);
 
-     // AffineTransform trans2 = AffineTransform.getTranslateInstance(75.0, 25.0); //ANCHOR POINT
-      AffineTransform trans2 = AffineTransform.getTranslateInstance(75.0, 25.0); //ANCHOR POINT
-      // From API AffineTransform public void rotate method: 
-      // "Rotating with a positive angle theta rotates points on the positive x axis 
-      // (x+) toward the positive y axis (y+)". 
-      // Since y+ is pointing down on the JComponent, a negative rotation has the 
-      // effect of rotating upward
-      // (reverse of trigonometry circle you may be used to since y+ is pointing down on screen) 
-      trans2.rotate(-Math.PI/2.0);
-      base = new MyRectangle(trans2, 100, 40, YELLOW, displayRoot, 4, BASE);
-      displayRoot.addChild(base);   
-      AffineTransform trans3 = AffineTransform.getTranslateInstance(95.0, 0);
-      trans3.rotate(Math.PI/4.0);
-      scalarArm = new MyRectangle(trans3, 150, 40, YELLOW, base, 4, SCALE_ARM);
-      base.addChild(scalarArm); 
-      AffineTransform trans4 = AffineTransform.getTranslateInstance(135.0, 0);
-      //trans4.rotate(Math.PI/8.0);
-      //THE width and  height is currently preset so it doesn't matter wat you pass it
-      bentArm = new MyRectangle(trans4, 0, 0, YELLOW, scalarArm, 6, BENT_ARM); 
-      scalarArm.addChild(bentArm); 
-      AffineTransform trans5 = AffineTransform.getTranslateInstance(40.0, 150.0);
-     // trans5.rotate(-Math.PI);
-      bucket = new MyRectangle(trans5, 50, 50, Color.LIGHT_GRAY, bentArm, 0, BUCKET);
-      bentArm.addChild(bucket);
-      makeBottle();
+   /*
+    * Build the hierarchy of a digger and return its root
+    */
+   static MyRectangle makeDigger() {
+      return DIGGER.build();
    }
 
    public void paintComponent(Graphics g) {
-      super.paintComponent(g);
       // From API The Graphics object should have the same state when 
       // you're finished painting as it had when you started. Therefore
       // either restore state (translate(x,y) and end with translate(-x,-y)
       //     or make a copy (easier)
-      // Example of copying the Graphics object
-      Graphics2D g2 = (Graphics2D)g.create(); //copy g
+      // A copy of g is allocated on every frame, so the state painting
+      // changes (transform, color, stroke and antialiasing) is restored
+      // instead. super.paintComponent is not called either: it fills the
+      // background on another copy of g, and the backdrop covers the panel.
+      Graphics2D g2 = (Graphics2D)g;
+      Paint savedPaint = g2.getPaint();
+      Stroke savedStroke = g2.getStroke();
+      Object savedAntialiasing = g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
 
-      g2.setRenderingHints(rh);
+      // The only allocation of a frame is this copy of the transform,
+      // which the Graphics2D API does not give otherwise
+      frameAT = g2.getTransform();
+      paintClip.setBounds(0, 0, getWidth(), getHeight());
+      g2.getClipBounds(paintClip);
+      countPixels(paintClip);
 
-      g2.clearRect(0, 0, getWidth(), getHeight());
-      
-      g2.clearRect(0, 0, getWidth(), getHeight());
-      g2.setColor( new Color(200,200,255) );
-      g2.fillRect(0,0,900,600);  // fills the sky, behind the dunes
-      
-      g2.setColor( new Color(251,193,115) );
-      g2.fillRect(0,100,900,800);  // the sand
-   
-      g2.fill(new Arc2D.Double(100, 70, 80, 100, 0, 180, Arc2D.PIE));//sand dunes  
-      g2.fill(new Arc2D.Double(700, 70, 120, 100, 0, 180, Arc2D.PIE));
-      g2.fill(new Arc2D.Double(220, 70, 80, 100, 0, 180, Arc2D.PIE)); 
-      g2.fill(new Arc2D.Double(400, 80, 100, 150, 0, 180, Arc2D.PIE));
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-      
-       AffineTransform t = AffineTransform.getTranslateInstance(0, 100);
-	  g2.transform(t);
+      drawBackground(g2);
+
+	  g2.translate(0, 100);
 	  drawBottle(g2);
-	  
-	 try {
-			g2.transform(t.createInverse());
-		} catch (NoninvertibleTransformException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-     
+	  g2.translate(0, -100);
+      
+      // Paint the diggers of the display list visible in the clip
+      for (int i = 0; i < displayList.size(); i++) {
+         DisplayList.Entry e = displayList.get(i);
+         if (paintClip.intersects(e.getBounds()))
+            paintDigger(g2, e);
+      }
       
-      g2.transform(objectTransform);
+      g2.setTransform(frameAT);
+	drawClouds(g2);
+      
+      g2.setTransform(frameAT);
+      g2.setPaint(savedPaint);
+      g2.setStroke(savedStroke);
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, savedAntialiasing);
+   }
+
+   private void paintDigger(Graphics2D g2, DisplayList.Entry e) {
+      diggerAT.setTransform(frameAT);
+      diggerAT.concatenate(e.getTransform());
+      g2.setTransform(diggerAT);
       drawWindow(g2);
      
-      // Start painting with displayRoot, which inside its paint
+      // Start painting with the root, which inside its paint
       // method paints its own children (single child in our case)
-      if (displayRoot != null) {
-         displayRoot.paint(g2); 
-      }
-       g2.draw(new Rectangle2D.Double(71, 35, 50, 20));
+      e.getRoot().paint(g2, diggerAT); 
+       g2.draw(CAB);
       drawWheel(g2);
+   }
+
+   /*
+    * Stop animating the clouds, e.g. when the panel is only used to render
+    * frames off-screen
+    */
+   public void stopAnimation() {
+      setCloudsAnimated(false);
+   }
+
+   public void setCloudsAnimated(boolean animated) {
+      cloudsAnimated = animated;
+      if (animated)
+         requestFrame(0);
+   }
+
+   public boolean isCloudsAnimated() {
+      return cloudsAnimated;
+   }
+
+   /*
+    * Target refresh rate of the frames of every panel, in Hz
+    */
+   public void setRefreshRate(int rate) {
+      FrameScheduler.getShared().setRate(rate);
+   }
+
+   private void requestFrame(long delay) {
+      FrameScheduler.getShared().requestFrame(this, delay);
+   }
+
+   /*
+    * A frame of the FrameScheduler this panel requested: apply the drags
+    * since the last frame, step the clouds, take the latest replayed pose
+    * and flush the recording when due, and request the next frame only if
+    * one of them still needs it
+    */
+   public void frame(long now) {
+      applyDrag();
+      if (cloudsAnimated && isShowing()) {
+         if (!cloudsMoving) {
+            // Go on from the step where the clouds stopped
+            cloudStart = now - frameNumber * CLOUD_PERIOD * 1000000L;
+            cloudsMoving = true;
+         }
+         long elapsed = (now - cloudStart) / 1000000;
+         frameNumber = (int)(elapsed / CLOUD_PERIOD);
+         if (frameNumber != cloudFrame)
+            repaintClouds();
+         requestFrame(CLOUD_PERIOD - elapsed % CLOUD_PERIOD);
+      } else
+         cloudsMoving = false;
+      TripleBuffer<Pose> poses = replayPoses;
+      Pose p = poses == null ? null : poses.take();
+      if (p != null)
+         setPose(p);
+      if (isRecording) {
+         try {
+            recorder.flushIfDue();
+         } catch (IOException e) {
+            System.out.println("Unable to write record file "); 
+         }
+         requestFrame(EventRecorder.FLUSH_INTERVAL);
+      }
+   }
+
+   /*
+    * Paint the scene as it is at animation frame frame into g2, e.g. the
+    * graphics of an off-screen image: the panel does not need a frame.
+    */
+   public void renderFrame(Graphics2D g2, int frame) {
+      frameNumber = frame;
+      paintComponent(g2);
+   }
+
+   /*
+    * Copy the cached backdrop on g2, (re)rendering it first when needed.
+    * When no accelerated image can be created (e.g. the panel is not
+    * displayable) a BufferedImage is used instead.
+    */
+   private void drawBackground(Graphics2D g2) {
+      if (getWidth() <= 0 || getHeight() <= 0)
+         return;
+      GraphicsConfiguration gc = getGraphicsConfiguration();
+      if (gc == null) {
+         drawOffscreenBackground(g2);
+         return;
+      }
+      do {
+         int status = VolatileImage.IMAGE_INCOMPATIBLE;
+         if (background != null && background.getWidth() == getWidth()
+               && background.getHeight() == getHeight())
+            status = background.validate(gc);
+
+         if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+            if (background != null)
+               background.flush();
+            background = createVolatileImage(getWidth(), getHeight());
+            if (background == null) {
+               drawOffscreenBackground(g2);
+               return;
+            }
+            renderBackground();
+         } else if (status == VolatileImage.IMAGE_RESTORED) {
+            renderBackground();
+         }
+         g2.drawImage(background, 0, 0, null);
+      } while (background.contentsLost());
+   }
+
+   private void drawOffscreenBackground(Graphics2D g2) {
+      if (offscreenBackground == null || offscreenBackground.getWidth() != getWidth()
+            || offscreenBackground.getHeight() != getHeight()) {
+         offscreenBackground = new BufferedImage(getWidth(), getHeight(),
+               BufferedImage.TYPE_INT_RGB);
+         Graphics2D bg = offscreenBackground.createGraphics();
+         bg.setRenderingHints(rh);
+         bg.setBackground(BG);
+         bg.clearRect(0, 0, getWidth(), getHeight());
+         paintBackground(bg);
+         bg.dispose();
+      }
+      g2.drawImage(offscreenBackground, 0, 0, null);
+   }
+
+   private void renderBackground() {
+      Graphics2D bg = background.createGraphics();
+      bg.setRenderingHints(rh);
+      bg.setBackground(BG);
+      bg.clearRect(0, 0, background.getWidth(), background.getHeight());
+      paintBackground(bg);
+      bg.dispose();
+   }
+
+   private void paintBackground(Graphics2D g2) {
+      g2.setColor( SKY );
+      g2.fillRect(0,0,900,600);  // fills the sky, behind the dunes
       
-       AffineTransform current = g2.getTransform();
-     try {
-		AffineTransform inv = current.createInverse();
-		g2.transform(inv);
-	} catch (NoninvertibleTransformException e) {
-		// TODO Auto-generated catch block
-		e.printStackTrace();
-	}
-	drawClouds(g2);
-      
-      g2.dispose(); //release the copy's resources
+      g2.setColor( SAND );
+      g2.fillRect(0,100,900,800);  // the sand
+   
+      for (Arc2D dune: DUNES)
+         g2.fill(dune);//sand dunes  
+
+      drawStaticClouds(g2);
+   }
+
+   private void countPixels(Rectangle clip) {
+      long now = System.currentTimeMillis();
+      pixelsPainted += (long)clip.width * clip.height;
+      if (now - pixelsWindowStart >= 1000) {
+         pixelsPerSecond = pixelsPainted * 1000 / (now - pixelsWindowStart);
+         pixelsPainted = 0;
+         pixelsWindowStart = now;
+      }
+   }
+
+   /*
+    * Number of pixels repainted during the last measured second
+    */
+   public long getPixelsRepaintedPerSecond() {
+      return pixelsPerSecond;
+   }
+
+   /*
+    * Screen bounds of a shape and its descendants
+    */
+   private Rectangle screenBounds(MyRectangle r) {
+      return screenBounds(r.getWorldBounds());
+   }
+
+   private Rectangle screenBounds(Rectangle2D digger) {
+      return screenBounds(digger, new Rectangle());
+   }
+
+   /*
+    * Screen bounds of digger, a rectangle in the coordinate system of the
+    * digger, padded for strokes, into dst
+    */
+   private Rectangle screenBounds(Rectangle2D digger, Rectangle dst) {
+      boundsCorners[0] = digger.getMinX(); boundsCorners[1] = digger.getMinY();
+      boundsCorners[2] = digger.getMaxX(); boundsCorners[3] = digger.getMinY();
+      boundsCorners[4] = digger.getMaxX(); boundsCorners[5] = digger.getMaxY();
+      boundsCorners[6] = digger.getMinX(); boundsCorners[7] = digger.getMaxY();
+      objectTransform.transform(boundsCorners, 0, boundsCorners, 0, 4);
+      double minX = boundsCorners[0], maxX = minX, minY = boundsCorners[1], maxY = minY;
+      for (int i = 2; i < 8; i += 2) {
+         minX = Math.min(minX, boundsCorners[i]);
+         maxX = Math.max(maxX, boundsCorners[i]);
+         minY = Math.min(minY, boundsCorners[i + 1]);
+         maxY = Math.max(maxY, boundsCorners[i + 1]);
+      }
+      int x0 = (int)Math.floor(minX), y0 = (int)Math.floor(minY);
+      dst.setBounds(x0, y0, (int)Math.ceil(maxX) - x0, (int)Math.ceil(maxY) - y0);
+      dst.grow(STROKE_PAD, STROKE_PAD);
+      return dst;
+   }
+
+   /*
+    * Screen bounds of the whole digger, chassis included
+    */
+   private Rectangle diggerBounds() {
+      Rectangle2D r = displayRoot.getWorldBounds();
+      r.add(CHASSIS);
+      return screenBounds(r);
+   }
+
+   private static Rectangle diggerBounds(DisplayList.Entry e) {
+      Rectangle2D r = e.getRoot().getWorldBounds();
+      r.add(CHASSIS);
+      Rectangle b = e.getTransform().createTransformedShape(r).getBounds();
+      b.grow(STROKE_PAD, STROKE_PAD);
+      return b;
+   }
+
+   /*
+    * Update the display list after the digger moved or changed shape
+    */
+   private void diggerChanged() {
+      displayList.setBounds(mainEntry, diggerBounds());
+   }
+
+   /*
+    * Add n diggers at random locations, at a third of the size of the
+    * main one
+    */
+   public void addDiggers(int n) {
+      boolean simulated = isFleetSimulated();
+      setFleetSimulated(false);
+      for (int i = 0; i < n; i++) {
+         AffineTransform t = AffineTransform.getTranslateInstance(
+               fleetRandom.nextInt(Math.max(1, getWidth())),
+               100 + fleetRandom.nextInt(Math.max(1, getHeight() - 100)));
+         t.scale(0.3, 0.3);
+         // The geometry of the first digger is shared by the others
+         if (fleetDigger == null)
+            fleetDigger = fleet.add(makeDigger());
+         addFleetDigger(fleet.add(fleetDigger), t);
+      }
+      setFleetSimulated(simulated);
+      repaint();
+   }
+
+   /*
+    * Add the instances of a RigFile to the fleet, as diggers
+    */
+   public void loadFleet(String file) {
+      boolean simulated = isFleetSimulated();
+      setFleetSimulated(false);
+      try {
+         int n = RigFile.load(file, fleet, new RigFile.Listener() {
+            public void instance(SceneStore.Rig rig, AffineTransform placement) {
+               addFleetDigger(rig, placement);
+            }
+         });
+         System.out.println("Loaded " + n + " diggers from " + file);
+      } catch (IOException e) {
+         System.out.println("Unable to load fleet file " + file + ": " + e.getMessage());
+      }
+      setFleetSimulated(simulated);
+      repaint();
+   }
+
+   private void addFleetDigger(SceneStore.Rig rig, AffineTransform placement) {
+      DisplayList.Entry e = displayList.add(rig, placement, new Rectangle(), fleetEntries.size());
+      displayList.setBounds(e, diggerBounds(e));
+      fleetRigs.add(rig);
+      fleetEntries.add(e);
+   }
+
+   /*
+    * Start or stop animating the fleet diggers
+    */
+   public void setFleetSimulated(boolean on) {
+      if (on == isFleetSimulated())
+         return;
+      if (on) {
+         ArrayList<AffineTransform> placements = new ArrayList<AffineTransform>();
+         for (DisplayList.Entry e: fleetEntries)
+            placements.add(e.getTransform());
+         Shape b = AffineTransform.getTranslateInstance(0, 100).createTransformedShape(bottle);
+         simulation = new FleetSimulation(fleet, fleetRigs, placements, b, CHASSIS,
+               STROKE_PAD, this);
+         simulation.start();
+      } else {
+         simulation.stop();
+         simulation = null;
+      }
+   }
+
+   public boolean isFleetSimulated() {
+      return simulation != null;
+   }
+
+   /*
+    * A new state of the fleet simulation: only copied, the simulation is
+    * done on its own threads
+    */
+   public void fleetChanged(FleetSimulation.Snapshot s) {
+      s.copyTo(fleet);
+      boolean grabbing = false;
+      for (int k = 0; k < s.getDiggerCount(); k++) {
+         displayList.setBounds(fleetEntries.get(k), s.getBounds(k, fleetBounds));
+         grabbing |= s.isGrabbing(k);
+      }
+      if (grabbing != fleetGrabbing) {
+         fleetGrabbing = grabbing;
+         repaintBottle();
+      }
+      repaint();
+   }
+
+   public int getDiggerCount() {
+      return displayList.size();
+   }
+
+   private void repaintBottle() {
+      Rectangle b = bottle.getBounds();
+      b.translate(0, 100);
+      b.grow(2, 2);
+      repaint(b);
+   }
+
+   /*
+    * Bounds of the moving clouds painted by drawClouds for frame f
+    */
+   private static Rectangle cloudBounds(int f) {
+      return new Rectangle(-50+30*(f % 300) / 10, 0, 130, 40);
+   }
+
+   private void repaintClouds() {
+      repaint(cloudBounds(cloudFrame));
+      cloudFrame = frameNumber;
+      repaint(cloudBounds(cloudFrame));
    }
 
    private void drawWindow(Graphics2D g2){
-	  Polygon poly = new Polygon();
-	  
-	  poly.addPoint(20,-WHEEL*2);
-	  poly.addPoint(0,40);
-	  poly.addPoint(180,40);
-	  poly.addPoint(80,-WHEEL*2);
-	
 	  g2.setColor(Color.LIGHT_GRAY);
 	  
-	  g2.fill(poly);
+	  g2.fill(window);
 	  
 	  g2.setColor(Color.DARK_GRAY);
-	  g2.setStroke( new BasicStroke(3) );
-	  g2.draw(poly);
+	  g2.setStroke( WINDOW_STROKE );
+	  g2.draw(window);
 	  
-	  g2.setStroke( new BasicStroke(10) );
+	  g2.setStroke( ROOF_STROKE );
 	  g2.setColor(YELLOW);
-	  g2.drawLine(20,-WHEEL*2,80,-WHEEL*2);
+	  g2.draw(roof);
 	  
    }
    
 	 private void drawWheel(Graphics2D g2) {
 
 		 g2.setColor(Color.BLACK);
-	      g2.fill( new Ellipse2D.Double(15,WHEEL-25,80,80) );
-	      g2.fill( new Ellipse2D.Double(155,WHEEL,60,60) );
+	      g2.fill( tyres[0] );
+	      g2.fill( tyres[1] );
 
 	      g2.setColor(Color.ORANGE);
-	      g2.fill( new Ellipse2D.Double(25,WHEEL-15,60,60) );
-	      g2.fill( new Ellipse2D.Double(165,WHEEL+10,40,40) );
+	      g2.fill( hubs[0] );
+	      g2.fill( hubs[1] );
 
 	   }
+
+   private static PaintPath[] paintPaths(Shape[] shapes) {
+      PaintPath[] paths = new PaintPath[shapes.length];
+      for (int i = 0; i < shapes.length; i++)
+         paths[i] = new PaintPath(shapes[i]);
+      return paths;
+   }
 	   
 	 private void makeBottle(){
 		 bottle = new Polygon();
@@ -272,132 +767,350 @@ import java.io.*;
 		  bottle.addPoint(415,100);
 		  bottle.addPoint(405,90);
 		  bottle.addPoint(405,80);
+		  bottlePath = new PaintPath(bottle);
 	 }
 	 
+	   /*
+    * The bodies of the collision world: the shapes of the digger, placed
+    * on the screen by objectTransform, and the bottle where drawBottle
+    * paints it. Only the bucket collides, with the props.
+    */
+   private void makeCollisions() {
+      collisions = new CollisionWorld();
+      collisionShapes = shapes();
+      shapeBodies = new int[collisionShapes.length];
+      for (int i = 0; i < collisionShapes.length; i++) {
+         MyRectangle r = collisionShapes[i];
+         shapeBodies[i] = r == bucket ? collisions.add(r.getCollider(), BUCKET_PART, PROP)
+               : collisions.add(r.getCollider(), PART, 0);
+      }
+      bottleBody = collisions.add(new Collider(bottle), PROP, 0);
+      collisions.setTransform(bottleBody, AffineTransform.getTranslateInstance(0, 100));
+   }
+
+   /*
+    * Place the shapes of the digger in the collision world where they are
+    * painted; when moved, the next test follows them from where they were
+    * placed before
+    */
+   private void placeCollisionShapes(boolean move) {
+      for (int i = 0; i < collisionShapes.length; i++) {
+         collisionAT.setTransform(objectTransform);
+         collisionAT.concatenate(collisionShapes[i].getWorldTransform());
+         if (move)
+            collisions.moveTo(shapeBodies[i], collisionAT);
+         else
+            collisions.setTransform(shapeBodies[i], collisionAT);
+      }
+   }
+
+   /*
+    * Whether the bucket, as painted, met the bottle on its way from the
+    * pose placed by placeCollisionShapes to the current one
+    */
+   private boolean bucketMetBottle() {
+      placeCollisionShapes(true);
+      bucketOnBottle = false;
+      collisions.findContacts(grabContact);
+      return bucketOnBottle;
+   }
+
 	   private void drawBottle(Graphics2D g2){
-		if(!botSelected){
+		if(!botSelected && !fleetGrabbing){
 		 g2.setColor(Color.white);
-		 g2.fill(bottle);
+		 g2.fill(bottlePath);
 		}else{
-			 g2.setColor( new Color(251,193,115) );
-			 g2.fill(bottle);
+			 g2.setColor( SAND );
+			 g2.fill(bottlePath);
 
 		}
 	 }
 	 
-	  public void drawClouds(Graphics2D g2){
+	  private void drawStaticClouds(Graphics2D g2){
 	   g2.setColor(Color.WHITE);
 	   
-	   g2.fill( new Ellipse2D.Double(500,10,10,10) );//stationary clouds
-	   g2.fill( new Ellipse2D.Double(505,5,15,15) );
-	   g2.fill( new Ellipse2D.Double(515,10,10,10) );
-	   
-	   g2.fill( new Ellipse2D.Double(200,20,15,15) );//stationary clouds
-	   g2.fill( new Ellipse2D.Double(210,10,25,25) );
-	   g2.fill( new Ellipse2D.Double(230,20,15,15) );
-	   
+	   for (Ellipse2D cloud: STATIC_CLOUDS)
+	      g2.fill( cloud );//stationary clouds
+	  }
+
+	  public void drawClouds(Graphics2D g2){
+	   g2.setColor(Color.WHITE);
 	   
 	   g2.translate(-50+30*(frameNumber % 300) / 10, 0);//animation for moving clouds
-	   g2.fill( new Ellipse2D.Double(5,10,10,10) );
-	   g2.fill( new Ellipse2D.Double(10,5,15,15) );
-	   g2.fill( new Ellipse2D.Double(20,10,10,10) );
-	   
-	   g2.fill( new Ellipse2D.Double(100,20,10,10) );
-	   g2.fill( new Ellipse2D.Double(105,15,15,15) );
-	   g2.fill( new Ellipse2D.Double(115,20,10,10) );
+	   for (int i = 0; i < movingClouds.length; i++)
+	      g2.fill( movingClouds[i] );
 	   
    }
    
 
    /*
-    * Create new list of events when recording is started
+    * Open the record file when recording is started
     */
    public void record() { 
+      applyDrag();
       try {
+         long now = System.currentTimeMillis();
+         recorder = new EventRecorder(RECORD_FILE, now, shapes().length);
+         recorder.snapshot(getPose(), now);
          oldObjectTransform = new AffineTransform(objectTransform); 
-         out = new ObjectOutputStream(new FileOutputStream(RECORD_FILE)); 
          isRecording = true;
-         events = new ArrayList<MouseEvent>();
+         requestFrame(EventRecorder.FLUSH_INTERVAL);
       } catch (IOException e) {
          System.out.println("Unable to open output stream for " + RECORD_FILE); 
       }  
    }
+
+   private void recordEvent(InputEvent e) {
+      try {
+         if (recorder.isSnapshotDue(e.getWhen()))
+            recorder.snapshot(getPose(), e.getWhen());
+         recorder.append(e);
+      } catch (IOException exp) {
+         System.out.println("Unable to write record file "); 
+      }
+   }
    
    /*
-    * Before to stop recording write arraylist of recorded events in file 
+    * Write the events still buffered and close the record file
     */
    public void stop() {
       if (isRecording) {
+         applyDrag();
          try {  
-            out.writeObject(events);
-            objectTransform = new AffineTransform(oldObjectTransform); 
-            isRecording = false; 
-            out.close();
+            recorder.close();
          } catch (IOException e) {
             System.out.println("Unable to write record file "); 
          }  
+         recorder = null;
+         objectTransform.setTransform(oldObjectTransform); 
+         isRecording = false; 
+         diggerChanged();
+         repaint();
       }
    }
 
    /*
-    * Stop recording before playing back, read in and process events by
-    * calling back appropriate methods
+    * Stop recording before playing back, then replay the events of the
+    * record file, paced by their timestamps
     */ 
    public void play() { 
       stop();
+      stopReplay();
 
+      ReplayEngine engine = openReplay(RECORD_FILE);
+      if (engine != null)
+         playReplay(engine);
+   }
+
+   private void playReplay(final ReplayEngine e) {
       // Starting a new Thread so replay can be interrupted
-      // However the replay is not done on the EDT (see below println)
+      // The replay is not done on the EDT (see below println): it only
+      // changes replayModel, never this panel
       // (Enclosing replay() call in another Thread remove the interruption capabilities)
-      new Thread( new Runnable() { 
+      replayThread = new Thread( new Runnable() { 
 	       public void run() {
+            System.out.println("Is EDT? " + SwingUtilities.isEventDispatchThread());
+            e.play();
+	       }
+      });
+      replayThread.start(); 
 
-            try {
-              ObjectInputStream in = new ObjectInputStream(new FileInputStream(RECORD_FILE)); 
-              ArrayList<MouseEvent> ev = (ArrayList<MouseEvent>) in.readObject();
-              in.close(); 
-              System.out.println("Is EDT? " + SwingUtilities.isEventDispatchThread());
-     	        replay(ev);
-
-            } catch (IOException exp) {
-              System.out.println("Unable to open file: " + RECORD_FILE); 
-            } catch (ClassNotFoundException exp2) {
-              System.out.println(exp2); 
-            }
+   }
 
-	       }
-      }).start(); 
+   /*
+    * Prepare the replay of file on this panel, from its current pose, and
+    * return the engine to drive from any thread other than the EDT (see
+    * ReplayEngine.play and advance); null if the file can not be opened.
+    * Any current replay is stopped.
+    */
+   public ReplayEngine openReplay(String file) {
+      stopReplay();
+      try {
+         String log = EventLog.open(file);
+         replayModel = new DrawingPanel();
+         replayModel.stopAnimation();
+         replayModel.setSize(getWidth(), getHeight());
+         replayer = new ReplayEngine(log, replayModel, replayModel);
+      } catch (IOException exp) {
+         System.out.println("Unable to open file: " + file); 
+         replayModel = null;
+         return null;
+      }
+      replayer.setSpeed(replaySpeed);
+      replayStart = getPose();
+      int shapes = replayStart.getShapeCount();
+      replayPoses = new TripleBuffer<Pose>(new Pose(shapes), new Pose(shapes), new Pose(shapes));
+      replayModel.setPose(replayStart);
+      replayModel.replayer = replayer;
+      replayModel.replayStart = replayStart;
+      replayModel.replayPoses = replayPoses;
+      replayModel.replayDisplay = this;
+      // Start from the pose of the start of the recording, if known
+      replayer.seek(0);
+      return replayer;
+   }
 
+   /*
+    * Interrupt the current replay, if any
+    */
+   public void stopReplay() {
+      if (replayThread != null) {
+         replayThread.interrupt();
+         replayThread = null;
+      }
+      replayer = null;
+      replayModel = null;
+      replayPoses = null;
    }
 
-   
-    private void replay(ArrayList<MouseEvent> events) {
-
-       for (MouseEvent e: events) {
-          
-          switch(e.getID()) {
-             case MouseEvent.MOUSE_PRESSED:
-                  mousePressed(e);
-                  break;
-             case MouseEvent.MOUSE_DRAGGED:
-                  mouseDragged(e);
-                  break;
-          }
-
-          // While a call to repaint() exists in mouseDragged(e), it is
-          // essential to force a synchronous paint by calling paintImmediately
-          // (with repaint() only paint requests are coalesced: teleportation effect)
-           
-          paintImmediately(this.getBounds());
-
-          // To slow down by a constant time the re-execution of events.
-          // Would be better to use event timestamps to sleep appropriately but not required. 
-          try { 
-    	      Thread.sleep(40);  
-    	    } catch(InterruptedException ex) {
-    	      Thread.currentThread().interrupt();
-    	    }  
-      } 
+   /*
+    * Move the current replay to time, in ms from the start of the recording.
+    * A replay started by play which reached the end plays on from time.
+    */
+   public void seekReplay(long time) {
+      if (replayer == null)
+         return;
+      replayer.seek(time);
+      if (replayThread != null && !replayThread.isAlive())
+         playReplay(replayer);
+   }
+
+   /*
+    * Duration of the current replay in ms, -1 if none
+    */
+   public long getReplayDuration() {
+      ReplayEngine engine = replayer;
+      return engine == null ? -1 : engine.getDuration();
+   }
+
+   /*
+    * Replay speed factor, from ReplayEngine.MIN_SPEED to MAX_SPEED
+    */
+   public void setReplaySpeed(double speed) {
+      replaySpeed = speed;
+      if (replayer != null)
+         replayer.setSpeed(speed);
+   }
+
+   public void replayEvent(InputEvent e) {
+      switch(e.getID()) {
+         case MouseEvent.MOUSE_PRESSED:
+              mousePressed((MouseEvent)e);
+              break;
+         case MouseEvent.MOUSE_DRAGGED:
+              // Recorded before DragDelta: applied with the following
+              // drags at the next replayFrame or other event
+              integrateDrag((MouseEvent)e);
+              break;
+         case DragDelta.DRAG_DELTA:
+              replayDrag((DragDelta)e);
+              break;
+         case KeyEvent.KEY_PRESSED:
+              keyPressed((KeyEvent)e);
+              break;
+      }
+   }
+
+   /*
+    * Apply a recorded DragDelta, from the current counter of the joint
+    * and within its limits
+    */
+   private void replayDrag(DragDelta d) {
+      applyDrag();
+      int start = jointCount();
+      drag(d.getX(), d.getY(), start, clampJoint(start + d.getSteps()),
+            clampJoint(start + d.getMin()), clampJoint(start + d.getMax()));
+   }
+
+   /*
+    * On a replayModel, called by the replay thread: hand the complete pose
+    * to the displayed panel, without waiting for it to be painted
+    */
+   public void replayFrame() {
+      if (replayDisplay == null)
+         return;
+      getPose(replayPoses.getBack());
+      replayPoses.publish();
+      replayDisplay.replayPoseReady();
+   }
+
+   /*
+    * A pose was published in replayPoses: take the latest at the next
+    * frame, so at most one pose per frame is applied and painted
+    */
+   private void replayPoseReady() {
+      requestFrame(0);
+   }
+
+   /*
+    * Restore the closest pose snapshot preceding index (or the pose of the
+    * start of the replay) and silently re-execute the following events
+    */
+   public void replaySeek(int index) {
+      ReplayEngine engine = replayer;
+      if (engine == null)
+         return;
+      int from = 0;
+      int s = engine.getSnapshotFor(index);
+      if (s >= 0) {
+         setPose(engine.getSnapshot(s));
+         from = engine.getSnapshotIndex(s);
+      } else
+         setPose(replayStart);
+      for (int i = from; i < index; i++)
+         replayEvent(engine.getEvent(i));
+   }
+
+   /*
+    * The shapes of the hierarchy, in the order used by Pose
+    */
+   private MyRectangle[] shapes() {
+      return new MyRectangle[] {displayRoot, base, scalarArm, bentArm, bucket};
+   }
+
+   public Pose getPose() {
+      return getPose(new Pose(shapes().length));
+   }
+
+   /*
+    * Copy the current pose into p
+    */
+   public Pose getPose(Pose p) {
+      applyDrag();
+      MyRectangle[] shapes = shapes();
+      objectTransform.getMatrix(p.objectTransform);
+      for (int i = 0; i < shapes.length; i++)
+         shapes[i].getTrans().getMatrix(p.trans[i]);
+      p.rotateNumScale = rotateNumScale;
+      p.rotateNumBent = rotateNumBent;
+      p.rotateNumBucket = rotateNumBucket;
+      p.scaleNumArm = scaleNumArm;
+      p.botSelected = botSelected;
+      p.selected = selected;
+      p.lastX = lastX;
+      p.lastY = lastY;
+      return p;
+   }
+
+   public void setPose(Pose p) {
+      dragPending = false;
+      MyRectangle[] shapes = shapes();
+      objectTransform.setTransform(new AffineTransform(p.objectTransform));
+      for (int i = 0; i < shapes.length; i++)
+         shapes[i].setTrans(new AffineTransform(p.trans[i]));
+      rotateNumScale = p.rotateNumScale;
+      rotateNumBent = p.rotateNumBent;
+      rotateNumBucket = p.rotateNumBucket;
+      scaleNumArm = p.scaleNumArm;
+      botSelected = p.botSelected;
+      // A fleet digger selection is not part of the pose
+      selected = p.selected == FLEET ? NONE : p.selected;
+      lastX = p.lastX;
+      lastY = p.lastY;
+      selectedRect = null;
+      selectedEntry = null;
+      diggerChanged();
+      repaint();
    }
    
 
@@ -406,23 +1119,29 @@ import java.io.*;
     * is selected
     */
    public void mousePressed(MouseEvent e) {
-      Point2D pInv;
+      applyDrag();
       if (isRecording)
-         events.add(e);
+         recordEvent(e);
 
         // System.out.println("x:" +e.getX()+" y:"+e.getY());
       if (e.getButton() == MouseEvent.BUTTON1) {
         
-        try {
-          pInv = objectTransform.inverseTransform(new Point2D.Double(e.getX(), e.getY()), null);
-        } catch (NoninvertibleTransformException er) {
-          er.printStackTrace();
-          return;
+        // Only the diggers registered in the display list cell under the
+        // mouse are tested
+        pressPoint.setLocation(e.getX(), e.getY());
+        DisplayList.Entry entry = displayList.pick(pressPoint, picked);
+        Object part = picked[0];
+        picked[0] = null;
+        selectedRect = null;
+        selectedEntry = null;
+        if(entry != null && entry != mainEntry){
+          selectedEntry = entry;
+          selected = FLEET;
         }
-
-        selectedRect = displayRoot.selectedShape(pInv);
-        if(selectedRect != null){
+        else if(entry != null){
+          selectedRect = (MyRectangle)part;
           selectedRect.selected=true;
+          repaint(screenBounds(selectedRect.getWorldBounds(pressWorld), pressBounds));
           selected = selectedRect.objectType;
           System.out.println("selected: "+selected);
         }
@@ -440,82 +1159,185 @@ import java.io.*;
    }
    
    
+   /*
+    * Drags only integrate their event: the pose is updated once per frame
+    * (or before any other event), however many drag events came since
+    */
    public void mouseDragged(MouseEvent e){
+      integrateDrag(e);
+      if (SwingUtilities.isEventDispatchThread())
+         requestFrame(0);
+      else
+         applyDrag();
+   }
+
+   /*
+    * Add a drag event to the pending ones: the counter of the selected
+    * joint moves by one step per event, within its limits, as if each
+    * event was applied
+    */
+   private void integrateDrag(MouseEvent e) {
+      if (!dragPending) {
+         dragPending = true;
+         dragX = lastX;
+         dragY = lastY;
+         dragCount = dragMin = dragMax = jointCount();
+      }
+      if (selected == SCALE_ARM || selected == BENT_ARM || selected == BUCKET) {
+         if (dragY - e.getY() > 0)
+            dragCount = clampJoint(dragCount + 1);
+         else if (dragY - e.getY() < 0)
+            dragCount = clampJoint(dragCount - 1);
+         dragMin = Math.min(dragMin, dragCount);
+         dragMax = Math.max(dragMax, dragCount);
+      }
+      dragX = e.getX();
+      dragY = e.getY();
+      dragWhen = e.getWhen();
+   }
+
+   /*
+    * Apply the pending drags, recorded as a single DragDelta
+    */
+   private void applyDrag() {
+      if (!dragPending)
+         return;
+      dragPending = false;
+      int start = jointCount();
       if (isRecording)
-         events.add(e);
-      
-      Point2D pInv;
-      Point2D pInv2;
-      AffineTransform inv = null;
-        try {//the line below stores the center x and y of the bottle's rectangle after transform
-          pInv = objectTransform.inverseTransform(new Point2D.Double(bottle.getBounds2D().getCenterX(),bottle.getBounds2D().getCenterY()), null);
-          inv = bucket.getTrans().createInverse();
-        } catch (NoninvertibleTransformException er) {
-          er.printStackTrace();
-          return;
-        }
-        pInv2 = inv.transform(pInv,null);
+         recordEvent(new DragDelta(this, dragWhen, dragX, dragY,
+               dragCount - start, dragMin - start, dragMax - start));
+      drag(dragX, dragY, start, dragCount, dragMin, dragMax);
+   }
+
+   /*
+    * Move the selection with the mouse to (x, y): translate the digger,
+    * or turn the selected joint from counter start to end, by min and max
+    */
+   private void drag(int x, int y, int start, int end, int min, int max) {
+      // Test the whole move of the bucket, not only where it ends: the
+      // joint may have turned by many steps since the last frame. Only a
+      // turning joint grabs the bottle; moving the digger never does
+      boolean joint = selected == SCALE_ARM || selected == BENT_ARM || selected == BUCKET;
+      boolean sweeping = joint && !botSelected;
+      Rectangle oldBounds = movedBounds();
+      boolean hadBottle = botSelected;
+      boolean grabbed = false;
       if (selected == BASE || selected == ROOT) {
-         AffineTransform trans = AffineTransform.getTranslateInstance(e.getX() - lastX,e.getY() - lastY);
+         AffineTransform trans = AffineTransform.getTranslateInstance(x - lastX, y - lastY);
          objectTransform.concatenate(trans);
       }
-      else if (selected == BENT_ARM) {
-    		AffineTransform transTemp = bentArm.getTrans();//testing the rotation
-    		if(lastY - e.getY() > 0 && rotateNumBent < 35){
-          rotateNumBent++;
-    			transTemp.rotate(-Math.PI/90.0);
-    		}
-    		if(lastY - e.getY() < 0 && rotateNumBent >= 0){
-          rotateNumBent--;
-    			transTemp.rotate(Math.PI/90.0);
-    		}
-    	}
-  	
-      else if (selected == SCALE_ARM) {
-  		//scaling keyboard controlled
-    		AffineTransform transTemp = base.getChild().getTrans();
-    		if(lastY - e.getY() > 0 && rotateNumScale < 5){
-          rotateNumScale++;
-    			transTemp.rotate(-Math.PI/90.0);
-    		}
-    		if(lastY - e.getY() < 0 && rotateNumScale > -35){
-          rotateNumScale--;
-    			transTemp.rotate(Math.PI/90.0);
-    		}
+      else if (selected == FLEET) {
+         selectedEntry.getTransform().preConcatenate(
+               AffineTransform.getTranslateInstance(x - lastX, y - lastY));
+         displayList.setBounds(selectedEntry, diggerBounds(selectedEntry));
+         if (simulation != null)
+            simulation.setPlacement(selectedEntry.getIndex(), selectedEntry.getTransform());
       }
-  	
-      else if (selected == BUCKET) {
-  		//make the scaling keyboard controlled
-    		AffineTransform transTemp = bucket.getTrans();
-    		if(lastY - e.getY() > 0 && rotateNumBucket < 25){
-          rotateNumBucket++;
-    			transTemp.rotate(-Math.PI/90.0);
-    			
-    			//I believe for this code to work the bottle bounds must be pushed through the inverse trans
-    			if(bucket.getBody().contains(pInv2)){
-    	    		   //bottle.reset();
-    					botSelected=true;
-    	    		   System.out.println("You grabbed bottle!");
-    	    	  }
-    		}
-    		if(lastY - e.getY() < 0 && rotateNumBucket > -65){
-          rotateNumBucket--;
-    			transTemp.rotate(Math.PI/90.0);
-    		
-    			if(bucket.getBody().contains(pInv2)){
-    				botSelected=true;
- 	    		   System.out.println("You grabbed bottle!");
-    			}
-    		}
-    	  
+      else if (sweeping && min != max) {
+         // From the lowest counter reached to the highest, which covers
+         // every pose of the joint during the drags. A joint which did not
+         // turn (e.g. held at a limit) grabs nothing
+         turnJoint(min - start);
+         placeCollisionShapes(false);
+         for (int count = min; count < max && !grabbed; count += SWEEP_STEPS) {
+            turnJoint(Math.min(SWEEP_STEPS, max - count));
+            grabbed = bucketMetBottle();
+         }
+         turnJoint(end - jointCount());
+      }
+      else if (joint) {
+         turnJoint(end - start);
       }else{
     	  selected = NONE;
       }
 
-      repaint();
-      lastX = e.getX();
-      lastY = e.getY();
-      
+      if (grabbed) {
+         botSelected = true;
+         System.out.println("You grabbed bottle!");
+      }
+
+      if (oldBounds != null) {
+         diggerChanged();
+         repaint(oldBounds.union(movedBounds()));
+      }
+      if (botSelected != hadBottle)
+         repaintBottle();
+      lastX = x;
+      lastY = y;
+   }
+
+   /*
+    * Counter of the selected joint, 0 if none is selected
+    */
+   private int jointCount() {
+      switch (selected) {
+         case SCALE_ARM:
+            return rotateNumScale;
+         case BENT_ARM:
+            return rotateNumBent;
+         case BUCKET:
+            return rotateNumBucket;
+      }
+      return 0;
+   }
+
+   /*
+    * count within the limits of the counter of the selected joint
+    */
+   private int clampJoint(int count) {
+      switch (selected) {
+         case SCALE_ARM:
+            return Math.max(SCALE_MIN, Math.min(SCALE_MAX, count));
+         case BENT_ARM:
+            return Math.max(BENT_MIN, Math.min(BENT_MAX, count));
+         case BUCKET:
+            return Math.max(BUCKET_MIN, Math.min(BUCKET_MAX, count));
+      }
+      return 0;
+   }
+
+   /*
+    * Turn the selected joint by steps JOINT_STEPs, in one rotation
+    */
+   private void turnJoint(int steps) {
+      MyRectangle shape;
+      switch (selected) {
+         case SCALE_ARM:
+            rotateNumScale += steps;
+            shape = base.getChild();
+            break;
+         case BENT_ARM:
+            rotateNumBent += steps;
+            shape = bentArm;
+            break;
+         default:
+            rotateNumBucket += steps;
+            shape = bucket;
+      }
+      if (steps != 0)
+         shape.getTrans().rotate(-steps * JOINT_STEP);
+      shape.markDirty();
+   }
+
+   /*
+    * Screen bounds of the part of the digger moved by dragging the
+    * selected shape, null when nothing is selected
+    */
+   private Rectangle movedBounds() {
+      switch (selected) {
+         case ALL_OBJECT:
+            return diggerBounds();
+         case SCALE_ARM:
+            return screenBounds(scalarArm);
+         case BENT_ARM:
+            return screenBounds(bentArm);
+         case BUCKET:
+            return screenBounds(bucket);
+         case FLEET:
+            return new Rectangle(selectedEntry.getBounds());
+      }
+      return null;
    }
 
    /*
@@ -523,18 +1345,23 @@ import java.io.*;
     * becomes selected
     */
    public void mouseReleased(MouseEvent e) {
+      applyDrag();
       selected = NONE;
       selectedRect = null;
+      selectedEntry = null;
    }
 
   public void mouseMoved(MouseEvent e){}
   public void mouseClicked(MouseEvent e){
+    applyDrag();
     if(e.getClickCount() == 2){
       System.out.println("double click");
+      Rectangle oldBounds = diggerBounds();
       AffineTransform trans = new AffineTransform(new double[] {-1.0,0.0,0.0,1.0});
       objectTransform.concatenate(trans); 
       rotated = !rotated;
-      repaint();
+      diggerChanged();
+      repaint(oldBounds.union(diggerBounds()));
     }
   }
   public void mouseExited(MouseEvent e){}
@@ -542,9 +1369,13 @@ import java.io.*;
 
   @Override
   public void keyPressed(KeyEvent e) {
+      applyDrag();
+      if (isRecording)
+         recordEvent(e);
   	System.out.println(e.getKeyChar());  
   	System.out.println("slected: "+selected);
   	  if(selected == SCALE_ARM ){
+  		  Rectangle oldBounds = screenBounds(scalarArm);
   		  AffineTransform transTemp = scalarArm.getTrans();
   		  AffineTransform limitTemp = scalarArm.getChild().getTrans();
   		  if(e.getKeyChar() == 'l' && scaleNumArm<6){
@@ -558,7 +1389,9 @@ import java.io.*;
   			  transTemp.scale(.95,1);
   			  limitTemp.scale(1.05, 1);
   		  }
-  		  repaint();
+  		  scalarArm.markDirty();
+  		  diggerChanged();
+  		  repaint(oldBounds.union(screenBounds(scalarArm)));
   	  }	
   	
   }
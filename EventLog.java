@@ -0,0 +1,224 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Binary file format for recorded input events.
+ *
+ * Serializing AWT events with an ObjectOutputStream stores class
+ * descriptors and every field of the event hierarchy. Only a few
+ * fields are needed to replay an event, so this format stores them as
+ * fixed-width primitives (big endian, the ByteBuffer default):
+ *
+ *    header  int    MAGIC ("DGEV")
+ *            int    VERSION
+ *            long   base time, in ms (time of the first event)
+ *    record  short  event id (MouseEvent.MOUSE_PRESSED, KeyEvent.KEY_PRESSED...)
+ *            byte   mouse button (0 for key events)
+ *            short  x
+ *            short  y
+ *            int    extended modifiers
+ *            char   key char (KeyEvent.CHAR_UNDEFINED for mouse events)
+ *            int    timestamp (InputEvent.getWhen()) relative to the base time
+ *
+ * Since version 2, the drags of a frame are recorded as one DragDelta
+ * (id DragDelta.DRAG_DELTA, button 0): its steps, min and max are the
+ * bytes 2, 1 and 0 of the modifiers field. Version 1 files, which hold
+ * every MOUSE_DRAGGED event, are still read.
+ *
+ * Records have a fixed size, so the number of events follows from the
+ * file length and a record can be located without reading the others.
+ * A file cut short (e.g. by a crash while recording) is read up to its
+ * last complete record. Files are written by an EventRecorder.
+ *
+ * The legacy "events" files (an ArrayList<MouseEvent> written with
+ * ObjectOutputStream) can be converted with:
+ *    java EventLog <legacy file> <new file>
+ * or are converted when opened for a replay (see open), next to the
+ * legacy file which is left untouched.
+ */
+public class EventLog {
+
+   public static final int MAGIC = 0x44474556;
+   public static final int VERSION = 2;
+   public static final int HEADER_SIZE = 16;
+   public static final int RECORD_SIZE = 17;
+
+   // First bytes of a file written by an ObjectOutputStream
+   private static final int LEGACY_MAGIC = 0xACED;
+   // Appended to the name of a legacy file for its conversion
+   public static final String CONVERTED_SUFFIX = ".dgev";
+
+   public static void putHeader(ByteBuffer buf, long baseTime) {
+      buf.putInt(MAGIC);
+      buf.putInt(VERSION);
+      buf.putLong(baseTime);
+   }
+
+   /*
+    * Check the header and return the base time of the records
+    */
+   public static long getHeader(ByteBuffer buf) throws IOException {
+      if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC)
+         throw new IOException("Not an event log");
+      int version = buf.getInt();
+      if (version < 1 || version > VERSION)
+         throw new IOException("Unsupported event log version " + version);
+      return buf.getLong();
+   }
+
+   public static void putEvent(ByteBuffer buf, InputEvent e, long baseTime) {
+      int button = 0, x = 0, y = 0;
+      char keyChar = KeyEvent.CHAR_UNDEFINED;
+      if (e instanceof MouseEvent) {
+         MouseEvent m = (MouseEvent)e;
+         button = m.getButton();
+         x = m.getX();
+         y = m.getY();
+      } else if (e instanceof KeyEvent) {
+         keyChar = ((KeyEvent)e).getKeyChar();
+      }
+      buf.putShort((short)e.getID());
+      buf.put((byte)button);
+      buf.putShort((short)x);
+      buf.putShort((short)y);
+      buf.putInt(e instanceof DragDelta ? ((DragDelta)e).pack() : e.getModifiersEx());
+      buf.putChar(keyChar);
+      buf.putInt((int)(e.getWhen() - baseTime));
+   }
+
+   /*
+    * Read one record and rebuild the event with the given source component
+    */
+   public static InputEvent getEvent(ByteBuffer buf, Component source, long baseTime) {
+      int id = buf.getShort();
+      int button = buf.get();
+      int x = buf.getShort();
+      int y = buf.getShort();
+      int modifiers = buf.getInt();
+      char keyChar = buf.getChar();
+      long when = baseTime + buf.getInt();
+      if (id >= KeyEvent.KEY_FIRST && id <= KeyEvent.KEY_LAST)
+         return new KeyEvent(source, id, when, modifiers, KeyEvent.VK_UNDEFINED, keyChar);
+      if (id == DragDelta.DRAG_DELTA)
+         return DragDelta.unpack(source, when, x, y, modifiers);
+      // Screen coordinates are not recorded: passing them avoids the
+      // exception thrown by getLocationOnScreen for a hidden source
+      return new MouseEvent(source, id, when, modifiers, x, y, x, y, 1, false, button);
+   }
+
+   public static void write(String file, List<? extends InputEvent> events) throws IOException {
+      long baseTime = events.isEmpty() ? 0 : events.get(0).getWhen();
+      EventRecorder out = new EventRecorder(file, baseTime);
+      try {
+         for (InputEvent e: events)
+            out.append(e);
+      } finally {
+         out.close();
+      }
+   }
+
+   /*
+    * Read all the events of a file. Legacy files are read with an
+    * ObjectInputStream so that old recordings can still be played.
+    */
+   public static ArrayList<InputEvent> read(String file, Component source) throws IOException {
+      if (isLegacy(file))
+         return readLegacy(file);
+
+      FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+      try {
+         ByteBuffer buf = ByteBuffer.allocate((int)ch.size());
+         while (buf.hasRemaining() && ch.read(buf) >= 0)
+            ;
+         buf.flip();
+         long baseTime = getHeader(buf);
+         ArrayList<InputEvent> events = new ArrayList<InputEvent>(buf.remaining() / RECORD_SIZE);
+         while (buf.remaining() >= RECORD_SIZE)
+            events.add(getEvent(buf, source, baseTime));
+         return events;
+      } finally {
+         ch.close();
+      }
+   }
+
+   public static boolean isLegacy(String file) throws IOException {
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+         return in.readUnsignedShort() == LEGACY_MAGIC;
+      } catch (EOFException e) {
+         return false;
+      } finally {
+         in.close();
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private static ArrayList<InputEvent> readLegacy(String file) throws IOException {
+      ObjectInputStream in = new ObjectInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+      try {
+         return new ArrayList<InputEvent>((ArrayList<MouseEvent>)in.readObject());
+      } catch (ClassNotFoundException e) {
+         throw new IOException("Invalid legacy event file " + file, e);
+      } finally {
+         in.close();
+      }
+   }
+
+   /*
+    * Convert a legacy ObjectOutputStream recording to this format. The
+    * events are written to a temporary file renamed to file once
+    * complete, so a failed conversion leaves any previous file as it was.
+    */
+   public static void convertLegacy(String legacyFile, String file) throws IOException {
+      ArrayList<InputEvent> events = readLegacy(legacyFile);
+      Path target = Paths.get(file).toAbsolutePath();
+      Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+      try {
+         write(tmp.toString(), events);
+         try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         Files.deleteIfExists(tmp);
+      }
+   }
+
+   /*
+    * The event log to replay file: file itself, or when it is a legacy
+    * file, its conversion file + CONVERTED_SUFFIX, made unless it exists
+    * and is newer than file
+    */
+   public static String open(String file) throws IOException {
+      if (!isLegacy(file))
+         return file;
+      String converted = file + CONVERTED_SUFFIX;
+      File c = new File(converted);
+      if (!c.exists() || c.lastModified() < new File(file).lastModified()) {
+         convertLegacy(file, converted);
+         System.out.println("Converted legacy record file " + file + " to " + converted);
+      }
+      return converted;
+   }
+
+   public static void main(String[] args) {
+      if (args.length != 2) {
+         System.out.println("Usage: java EventLog <legacy events file> <new events file>");
+         return;
+      }
+      try {
+         convertLegacy(args[0], args[1]);
+      } catch (IOException e) {
+         System.out.println("Unable to convert " + args[0] + ": " + e.getMessage());
+      }
+   }
+}
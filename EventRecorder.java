@@ -0,0 +1,141 @@
+import java.awt.event.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/*
+ * Append-only writer of an EventLog file.
+ *
+ * Events are encoded in a fixed size buffer which is written to the file
+ * channel when it is full and at least every FLUSH_INTERVAL ms, so the
+ * memory used does not depend on the length of the recording and a crash
+ * loses at most the last second of events.
+ *
+ * When created with a number of shapes, the recorder also writes pose
+ * snapshots in a PoseLog file; isSnapshotDue tells when the next one
+ * should be taken (every SNAPSHOT_EVENTS events or SNAPSHOT_INTERVAL ms).
+ * Not thread safe: events are appended and flushed on the EDT.
+ */
+public class EventRecorder {
+
+   public static final int BUFFER_SIZE = 64 * 1024;
+   public static final long FLUSH_INTERVAL = 1000;
+   public static final int SNAPSHOT_EVENTS = 500;
+   public static final long SNAPSHOT_INTERVAL = 2000;
+
+   private FileChannel channel;
+   private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+   private long baseTime;
+   private long lastFlush;
+   private long count;
+
+   private FileChannel poseChannel;
+   private ByteBuffer poseBuffer;
+   private int shapes;
+   private long lastSnapshotCount;
+   private long lastSnapshotTime;
+   private boolean snapshotTaken;
+
+   public EventRecorder(String file, long baseTime) throws IOException {
+      this(file, baseTime, 0);
+   }
+
+   public EventRecorder(String file, long baseTime, int shapes) throws IOException {
+      channel = open(file);
+      this.baseTime = baseTime;
+      EventLog.putHeader(buffer, baseTime);
+      if (shapes > 0) {
+         this.shapes = shapes;
+         poseChannel = open(file + PoseLog.SUFFIX);
+         poseBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+         PoseLog.putHeader(poseBuffer, shapes);
+      } else
+         Files.deleteIfExists(Paths.get(file + PoseLog.SUFFIX));
+      flush();
+   }
+
+   private static FileChannel open(String file) throws IOException {
+      return FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+   }
+
+   public long getBaseTime() {
+      return baseTime;
+   }
+
+   /*
+    * Number of events appended so far
+    */
+   public long getCount() {
+      return count;
+   }
+
+   public void append(InputEvent e) throws IOException {
+      if (buffer.remaining() < EventLog.RECORD_SIZE)
+         flush();
+      EventLog.putEvent(buffer, e, baseTime);
+      count++;
+      flushIfDue();
+   }
+
+   /*
+    * Whether a snapshot should be taken before appending an event at time
+    * when (always true before the first snapshot)
+    */
+   public boolean isSnapshotDue(long when) {
+      if (poseChannel == null)
+         return false;
+      return !snapshotTaken
+            || count - lastSnapshotCount >= SNAPSHOT_EVENTS
+            || when - lastSnapshotTime >= SNAPSHOT_INTERVAL;
+   }
+
+   /*
+    * Record the pose before the next appended event
+    */
+   public void snapshot(Pose p, long when) throws IOException {
+      if (poseChannel == null || p.getShapeCount() != shapes)
+         return;
+      if (poseBuffer.remaining() < PoseLog.recordSize(shapes))
+         flush();
+      PoseLog.putSnapshot(poseBuffer, (int)count, (int)(when - baseTime), p);
+      lastSnapshotCount = count;
+      lastSnapshotTime = when;
+      snapshotTaken = true;
+   }
+
+   /*
+    * Write the buffered events if the last flush is older than
+    * FLUSH_INTERVAL; also meant to be called periodically while idle.
+    */
+   public void flushIfDue() throws IOException {
+      if ((buffer.position() > 0 || poseBuffer != null && poseBuffer.position() > 0)
+            && System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL)
+         flush();
+   }
+
+   public void flush() throws IOException {
+      write(channel, buffer);
+      if (poseChannel != null)
+         write(poseChannel, poseBuffer);
+      lastFlush = System.currentTimeMillis();
+   }
+
+   private static void write(FileChannel ch, ByteBuffer buf) throws IOException {
+      buf.flip();
+      while (buf.hasRemaining())
+         ch.write(buf);
+      buf.clear();
+   }
+
+   public void close() throws IOException {
+      try {
+         flush();
+      } finally {
+         channel.close();
+         if (poseChannel != null)
+            poseChannel.close();
+      }
+   }
+}
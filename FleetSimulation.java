@@ -0,0 +1,485 @@
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.SwingUtilities;
+
+/*
+ * Fixed timestep simulation of a fleet of diggers, off the event dispatch
+ * thread.
+ *
+ * Every TICK_MS of simulated time each digger moves its three joints
+ * (scalar arm, bent arm and bucket) by one DrawingPanel.JOINT_STEP, back
+ * and forth between the limits DrawingPanel applies to the user,
+ * recomputes the world transforms of its shapes, its screen bounds, and
+ * tests whether its bucket reached the bottle. Diggers are independent:
+ * a tick is split in chunks of diggers run in parallel on a fork-join
+ * pool. The world transforms of a chunk are composed by a TransformBatch,
+ * one depth of all its diggers at a time.
+ *
+ * After the ticks due, the state is copied into an immutable Snapshot
+ * handed to the listener on the event dispatch thread, which only has to
+ * copy it into its SceneStore and display list and paint. A new snapshot
+ * is only made once the previous one was taken, so a slow event dispatch
+ * thread skips states instead of queueing them.
+ *
+ * The simulation copies what it needs from the SceneStore when created,
+ * the joints from their rest transform and turn, which the snapshots give
+ * back: a new simulation carries on within the limits where the previous
+ * one stopped. The store must not get new rigs while it runs (start a new
+ * simulation).
+ */
+public class FleetSimulation implements Runnable {
+
+   public static final int TICK_MS = 20;
+   // Ticks run at most to catch up after a stall, the others are dropped
+   private static final int MAX_CATCH_UP = 5;
+   private static final int CHUNKS_PER_CORE = 4;
+
+   private static final int JOINTS = 3;
+   private static final int[] JOINT_TYPES = {
+      DrawingPanel.SCALE_ARM, DrawingPanel.BENT_ARM, DrawingPanel.BUCKET
+   };
+   private static final int[] JOINT_MIN = {
+      DrawingPanel.SCALE_MIN, DrawingPanel.BENT_MIN, DrawingPanel.BUCKET_MIN
+   };
+   private static final int[] JOINT_MAX = {
+      DrawingPanel.SCALE_MAX, DrawingPanel.BENT_MAX, DrawingPanel.BUCKET_MAX
+   };
+   private static final int BUCKET_JOINT = 2;
+
+   /*
+    * Receives the snapshots, on the event dispatch thread
+    */
+   public interface Listener {
+      void fleetChanged(Snapshot s);
+   }
+
+   /*
+    * State of the fleet after a tick
+    */
+   public static class Snapshot {
+      private final long tick;
+      private final double[] local;
+      private final double[] world;
+      private final int[] bounds;
+      private final boolean[] grabbing;
+      private final int[] jointNode;
+      private final int[] count;
+
+      Snapshot(long tick, double[] local, double[] world, int[] bounds, boolean[] grabbing,
+            int[] jointNode, int[] count) {
+         this.tick = tick;
+         this.local = local;
+         this.world = world;
+         this.bounds = bounds;
+         this.grabbing = grabbing;
+         this.jointNode = jointNode;
+         this.count = count;
+      }
+
+      public long getTick() {
+         return tick;
+      }
+
+      public int getDiggerCount() {
+         return grabbing.length;
+      }
+
+      /*
+       * Screen bounds of digger k, strokes included
+       */
+      public Rectangle getBounds(int k, Rectangle dst) {
+         dst.setBounds(bounds[4 * k], bounds[4 * k + 1], bounds[4 * k + 2], bounds[4 * k + 3]);
+         return dst;
+      }
+
+      public boolean isGrabbing(int k) {
+         return grabbing[k];
+      }
+
+      /*
+       * Steps joint j (0 scalar arm, 1 bent arm, 2 bucket) of digger k
+       * turned from its rest transform
+       */
+      public int getTurn(int k, int j) {
+         return count[JOINTS * k + j];
+      }
+
+      /*
+       * Give the transforms of the shapes and the turns of the joints to
+       * store, the SceneStore the simulation was created from
+       */
+      public void copyTo(SceneStore store) {
+         store.setTransforms(local, world);
+         for (int i = 0; i < jointNode.length; i++)
+            store.setTurn(jointNode[i], count[i]);
+      }
+   }
+
+   private final int diggers;
+   private final Listener listener;
+
+   // Per node of the store, 6 coefficients per transform
+   private final double[] local;
+   private final double[] world;
+   private final int[] parent;
+   private final double[] nodeBounds;   // minX minY maxX maxY, local
+   // Per digger
+   private final int[] first;
+   private final int[] last;
+   private final double[] placement;    // 6 coefficients
+   private final int[] bounds;          // x y width height
+   private final boolean[] grabbing;
+   private final Collider[] bucketCollider;
+   private final double[] bucketScreen;  // 6 coefficients
+   // Per joint of each digger (JOINTS per digger)
+   private final int[] jointNode;
+   private final double[] rest;         // 6 coefficients, at count 0
+   // Steps turned from rest, within JOINT_MIN and JOINT_MAX
+   private final int[] count;
+   private final int[] direction;
+
+   private final Collider bottle;
+   private final Rectangle2D bottleBounds;
+   private static final double[] IDENTITY = {1, 0, 0, 1, 0, 0};
+   private final Rectangle2D chassis;
+   private final int pad;
+
+   // cos and sin of -c*JOINT_STEP, at c-COUNT_MIN
+   private static final int COUNT_MIN = Math.min(DrawingPanel.SCALE_MIN,
+         Math.min(DrawingPanel.BENT_MIN, DrawingPanel.BUCKET_MIN));
+   private static final int COUNT_MAX = Math.max(DrawingPanel.SCALE_MAX,
+         Math.max(DrawingPanel.BENT_MAX, DrawingPanel.BUCKET_MAX));
+   private static final double[] COS = new double[COUNT_MAX - COUNT_MIN + 1];
+   private static final double[] SIN = new double[COUNT_MAX - COUNT_MIN + 1];
+   static {
+      for (int c = COUNT_MIN; c <= COUNT_MAX; c++) {
+         COS[c - COUNT_MIN] = Math.cos(-c * DrawingPanel.JOINT_STEP);
+         SIN[c - COUNT_MIN] = Math.sin(-c * DrawingPanel.JOINT_STEP);
+      }
+   }
+
+   // Placements changed by the event dispatch thread, applied at the
+   // start of the next tick
+   private final double[] pendingPlacement;
+   private boolean placementChanged;
+   private final double[] matrix = new double[6];
+
+   private final ForkJoinPool pool;
+   private final List<Callable<Object>> chunks = new ArrayList<Callable<Object>>();
+   private long tick;
+   private volatile boolean running;
+   private Thread thread;
+   private final AtomicReference<Snapshot> pending = new AtomicReference<Snapshot>();
+   private final Runnable deliver = new Runnable() {
+      public void run() {
+         Snapshot s = pending.getAndSet(null);
+         if (s != null && running)
+            listener.fleetChanged(s);
+      }
+   };
+
+   /*
+    * Simulate the diggers of rigs, all of store, placed on screen by
+    * placements. The bottle is given in screen coordinates; chassis is
+    * what is painted around a rig, in its coordinate system, and pad the
+    * margin added to the bounds for strokes. To be called on the event
+    * dispatch thread.
+    */
+   public FleetSimulation(SceneStore store, List<SceneStore.Rig> rigs,
+         List<AffineTransform> placements, Shape bottle, Rectangle2D chassis,
+         int pad, Listener listener) {
+      this.listener = listener;
+      this.chassis = (Rectangle2D)chassis.clone();
+      this.pad = pad;
+      this.bottle = new Collider(bottle);
+      bottleBounds = this.bottle.getBounds();
+      diggers = rigs.size();
+
+      int n = store.size();
+      local = new double[6 * n];
+      world = new double[6 * n];
+      parent = new int[n];
+      nodeBounds = new double[4 * n];
+      AffineTransform t = new AffineTransform();
+      for (int i = 0; i < n; i++) {
+         store.getLocal(i, t);
+         t.getMatrix(matrix);
+         System.arraycopy(matrix, 0, local, 6 * i, 6);
+         store.getWorld(i, t);
+         t.getMatrix(matrix);
+         System.arraycopy(matrix, 0, world, 6 * i, 6);
+         parent[i] = store.getParent(i);
+         Rectangle2D b = store.getLocalBounds(i);
+         nodeBounds[4 * i] = b.getMinX();
+         nodeBounds[4 * i + 1] = b.getMinY();
+         nodeBounds[4 * i + 2] = b.getMaxX();
+         nodeBounds[4 * i + 3] = b.getMaxY();
+      }
+
+      first = new int[diggers];
+      last = new int[diggers];
+      placement = new double[6 * diggers];
+      pendingPlacement = new double[6 * diggers];
+      bounds = new int[4 * diggers];
+      grabbing = new boolean[diggers];
+      bucketCollider = new Collider[diggers];
+      bucketScreen = new double[6 * diggers];
+      jointNode = new int[JOINTS * diggers];
+      rest = new double[6 * JOINTS * diggers];
+      count = new int[JOINTS * diggers];
+      direction = new int[JOINTS * diggers];
+      Random random = new Random(341);
+      for (int k = 0; k < diggers; k++) {
+         SceneStore.Rig rig = rigs.get(k);
+         first[k] = rig.getFirst();
+         last[k] = rig.getFirst() + rig.getNodeCount();
+         placements.get(k).getMatrix(matrix);
+         System.arraycopy(matrix, 0, placement, 6 * k, 6);
+         for (int j = 0; j < JOINTS; j++) {
+            int node = first[k];
+            while (node < last[k] && store.getType(node) != JOINT_TYPES[j])
+               node++;
+            if (node == last[k])
+               throw new IllegalArgumentException("Rig " + k + " is not a digger");
+            jointNode[JOINTS * k + j] = node;
+            store.getRest(node, t);
+            t.getMatrix(matrix);
+            System.arraycopy(matrix, 0, rest, 6 * (JOINTS * k + j), 6);
+            count[JOINTS * k + j] = store.getTurn(node);
+            direction[JOINTS * k + j] = random.nextBoolean() ? 1 : -1;
+         }
+         bucketCollider[k] = store.getCollider(jointNode[JOINTS * k + BUCKET_JOINT]);
+      }
+      System.arraycopy(placement, 0, pendingPlacement, 0, placement.length);
+
+      int cores = Runtime.getRuntime().availableProcessors();
+      pool = new ForkJoinPool(cores);
+      int chunk = Math.max(1, (diggers + CHUNKS_PER_CORE * cores - 1) / (CHUNKS_PER_CORE * cores));
+      for (int from = 0; from < diggers; from += chunk)
+         chunks.add(new Chunk(from, Math.min(diggers, from + chunk)));
+   }
+
+   /*
+    * Diggers from to to-1, stepped by one task of the pool
+    */
+   private class Chunk implements Callable<Object> {
+      private final int from, to;
+      private final TransformBatch batch;
+      // Node of the batch of the first node of each digger
+      private final int[] base;
+
+      Chunk(int from, int to) {
+         this.from = from;
+         this.to = to;
+         base = new int[to - from];
+         int n = 0;
+         for (int k = from; k < to; k++) {
+            base[k - from] = n;
+            n += last[k] - first[k];
+         }
+         int[] parents = new int[n];
+         for (int k = from; k < to; k++)
+            for (int i = first[k]; i < last[k]; i++)
+               parents[batchNode(k, i)] = parent[i] < 0 ? -1 : batchNode(k, parent[i]);
+         batch = new TransformBatch(parents, n);
+         for (int k = from; k < to; k++)
+            for (int i = first[k]; i < last[k]; i++)
+               batch.setLocal(batchNode(k, i), local, 6 * i);
+      }
+
+      private int batchNode(int k, int node) {
+         return base[k - from] + node - first[k];
+      }
+
+      public Object call() {
+         for (int k = from; k < to; k++) {
+            turnJoints(k);
+            for (int j = 0; j < JOINTS; j++) {
+               int node = jointNode[JOINTS * k + j];
+               batch.setLocal(batchNode(k, node), local, 6 * node);
+            }
+         }
+         batch.update();
+         for (int k = from; k < to; k++) {
+            for (int i = first[k]; i < last[k]; i++)
+               batch.getWorld(batchNode(k, i), world, 6 * i);
+            place(k);
+         }
+         return null;
+      }
+   }
+
+   public int getDiggerCount() {
+      return diggers;
+   }
+
+   /*
+    * Move digger k on screen; applied at the next tick
+    */
+   public synchronized void setPlacement(int k, AffineTransform t) {
+      t.getMatrix(matrix);
+      System.arraycopy(matrix, 0, pendingPlacement, 6 * k, 6);
+      placementChanged = true;
+   }
+
+   public void start() {
+      running = true;
+      thread = new Thread(this, "Fleet simulation");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /*
+    * Stop the simulation: no snapshot is delivered after this returns, and
+    * it can not tick anymore
+    */
+   public void stop() {
+      running = false;
+      if (thread != null) {
+         LockSupport.unpark(thread);
+         try {
+            thread.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         thread = null;
+      }
+      pool.shutdownNow();
+   }
+
+   public void run() {
+      long tickNs = TICK_MS * 1000000L;
+      long next = System.nanoTime();
+      while (running) {
+         long now = System.nanoTime();
+         int ticks = 0;
+         while (now >= next && ticks < MAX_CATCH_UP) {
+            tick();
+            next += tickNs;
+            ticks++;
+         }
+         if (now >= next)
+            next = now + tickNs;
+         if (ticks > 0 && pending.get() == null) {
+            pending.set(snapshot());
+            SwingUtilities.invokeLater(deliver);
+         }
+         LockSupport.parkNanos(next - System.nanoTime());
+      }
+   }
+
+   /*
+    * Advance every digger by one tick, in parallel. Called by the
+    * simulation thread once started, or directly to step the simulation
+    * without thread (e.g. to measure it).
+    */
+   public void tick() {
+      synchronized (this) {
+         if (placementChanged) {
+            System.arraycopy(pendingPlacement, 0, placement, 0, placement.length);
+            placementChanged = false;
+         }
+      }
+      try {
+         for (Future<Object> f: pool.invokeAll(chunks))
+            f.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return;
+      } catch (ExecutionException e) {
+         throw new RuntimeException("Fleet simulation failed", e.getCause());
+      }
+      tick++;
+   }
+
+   /*
+    * Copy of the current state
+    */
+   public Snapshot snapshot() {
+      return new Snapshot(tick, local.clone(), world.clone(), bounds.clone(), grabbing.clone(),
+            jointNode, count.clone());
+   }
+
+   /*
+    * Turn the joints of digger k by one step: only touches the nodes of k
+    */
+   private void turnJoints(int k) {
+      for (int j = 0; j < JOINTS; j++) {
+         int i = JOINTS * k + j;
+         int c = count[i], d = direction[i];
+         if (c + d > JOINT_MAX[j] || c + d < JOINT_MIN[j])
+            d = direction[i] = -d;
+         count[i] = c = c + d;
+         // local = rest * rotation of -c steps
+         int r = 6 * i, o = 6 * jointNode[i];
+         double cos = COS[c - COUNT_MIN], sin = SIN[c - COUNT_MIN];
+         local[o] = rest[r] * cos + rest[r + 2] * sin;
+         local[o + 1] = rest[r + 1] * cos + rest[r + 3] * sin;
+         local[o + 2] = rest[r + 2] * cos - rest[r] * sin;
+         local[o + 3] = rest[r + 3] * cos - rest[r + 1] * sin;
+         local[o + 4] = rest[r + 4];
+         local[o + 5] = rest[r + 5];
+      }
+   }
+
+   /*
+    * Screen bounds and grab of digger k, once its world transforms are
+    * composed: only touches the entries of k
+    */
+   private void place(int k) {
+      double minX = chassis.getMinX(), minY = chassis.getMinY();
+      double maxX = chassis.getMaxX(), maxY = chassis.getMaxY();
+      for (int i = first[k]; i < last[k]; i++) {
+         int o = 6 * i;
+         for (int c = 0; c < 4; c++) {
+            double x = nodeBounds[4 * i + (c == 0 || c == 3 ? 0 : 2)];
+            double y = nodeBounds[4 * i + (c < 2 ? 1 : 3)];
+            double wx = world[o] * x + world[o + 2] * y + world[o + 4];
+            double wy = world[o + 1] * x + world[o + 3] * y + world[o + 5];
+            minX = Math.min(minX, wx);
+            maxX = Math.max(maxX, wx);
+            minY = Math.min(minY, wy);
+            maxY = Math.max(maxY, wy);
+         }
+      }
+
+      // Screen bounds: the rig bounds through the placement
+      int o = 6 * k;
+      double sMinX = Double.POSITIVE_INFINITY, sMinY = Double.POSITIVE_INFINITY;
+      double sMaxX = Double.NEGATIVE_INFINITY, sMaxY = Double.NEGATIVE_INFINITY;
+      for (int c = 0; c < 4; c++) {
+         double x = c == 0 || c == 3 ? minX : maxX;
+         double y = c < 2 ? minY : maxY;
+         double sx = placement[o] * x + placement[o + 2] * y + placement[o + 4];
+         double sy = placement[o + 1] * x + placement[o + 3] * y + placement[o + 5];
+         sMinX = Math.min(sMinX, sx);
+         sMaxX = Math.max(sMaxX, sx);
+         sMinY = Math.min(sMinY, sy);
+         sMaxY = Math.max(sMaxY, sy);
+      }
+      int x0 = (int)Math.floor(sMinX) - pad, y0 = (int)Math.floor(sMinY) - pad;
+      bounds[4 * k] = x0;
+      bounds[4 * k + 1] = y0;
+      bounds[4 * k + 2] = (int)Math.ceil(sMaxX) + pad - x0;
+      bounds[4 * k + 3] = (int)Math.ceil(sMaxY) + pad - y0;
+
+      // Bucket and bottle: when the digger bounds overlap the bottle, the
+      // exact test with the bucket placed on the screen
+      if (!grabbing[k] && bottleBounds.intersects(sMinX, sMinY, sMaxX - sMinX, sMaxY - sMinY)) {
+         int b = 6 * jointNode[JOINTS * k + BUCKET_JOINT];
+         bucketScreen[o] = placement[o] * world[b] + placement[o + 2] * world[b + 1];
+         bucketScreen[o + 1] = placement[o + 1] * world[b] + placement[o + 3] * world[b + 1];
+         bucketScreen[o + 2] = placement[o] * world[b + 2] + placement[o + 2] * world[b + 3];
+         bucketScreen[o + 3] = placement[o + 1] * world[b + 2] + placement[o + 3] * world[b + 3];
+         bucketScreen[o + 4] = placement[o] * world[b + 4] + placement[o + 2] * world[b + 5] + placement[o + 4];
+         bucketScreen[o + 5] = placement[o + 1] * world[b + 4] + placement[o + 3] * world[b + 5] + placement[o + 5];
+         grabbing[k] = Collider.intersects(bucketCollider[k], bucketScreen, o, bottle, IDENTITY, 0);
+      }
+   }
+}
@@ -0,0 +1,236 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+
+/*
+ * Off-screen rendering of a recording, without any window:
+ *
+ *    java -Djava.awt.headless=true FrameExporter <events file> <output> [fps [width height]]
+ *
+ * The events file can be a legacy one, converted next to it when opened
+ * (see EventLog.open). The output is either a directory, which receives
+ * numbered PNG files (frame_000000.png, frame_000001.png...), or a file
+ * ending with ".rgb", which receives the raw frames one after the other
+ * (width*height pixels of 3 bytes, red green blue, row by row).
+ *
+ * A frame is taken every 1000/fps ms of recording time, with the pose
+ * reached after all the events up to that time, and painted by a
+ * DrawingPanel into a BufferedImage. Frames are painted and encoded in
+ * parallel on a fork-join pool using all cores.
+ */
+public class FrameExporter {
+
+   public static final int DEFAULT_FPS = 25;
+   public static final String RAW_SUFFIX = ".rgb";
+
+   // Frames rendered per core between two writes
+   private static final int BATCH_PER_CORE = 4;
+
+   private DrawingPanel panel;
+   private ReplayEngine events;
+   private int width;
+   private int height;
+   private int fps;
+
+   /*
+    * Exporter of the recording in file, which can be a legacy one (see
+    * EventLog.open); fps, width and height must be positive
+    */
+   public FrameExporter(String file, int width, int height, int fps) throws IOException {
+      if (fps <= 0 || width <= 0 || height <= 0)
+         throw new IllegalArgumentException("fps " + fps + ", size " + width + "x" + height
+               + ": must be positive");
+      this.width = width;
+      this.height = height;
+      this.fps = fps;
+      panel = new DrawingPanel();
+      panel.stopAnimation();
+      panel.setSize(width, height);
+      events = new ReplayEngine(EventLog.open(file), panel, null);
+   }
+
+   public int getFrameCount() {
+      return (int)((long)events.getDuration() * fps / 1000) + 1;
+   }
+
+   /*
+    * Time of frame f, in ms from the start of the recording
+    */
+   private long frameTime(int f) {
+      return (long)f * 1000 / fps;
+   }
+
+   /*
+    * Render the frames and hand them to out, in order.
+    *
+    * Each frame only depends on the pose at its time: the poses of a
+    * batch of frames are computed first by applying the events in order
+    * (cheap), then the frames of the batch are painted and encoded in
+    * parallel, each worker with its own DrawingPanel and image, and the
+    * results are written in order.
+    */
+   public void export(final FrameEncoder out) throws IOException {
+      int s = events.getSnapshotFor(0);
+      if (s >= 0)
+         panel.setPose(events.getSnapshot(s));
+
+      int cores = Runtime.getRuntime().availableProcessors();
+      ForkJoinPool pool = new ForkJoinPool(cores);
+      final ThreadLocal<DrawingPanel> panels = new ThreadLocal<DrawingPanel>() {
+         protected DrawingPanel initialValue() {
+            DrawingPanel p = new DrawingPanel();
+            p.stopAnimation();
+            p.setSize(width, height);
+            return p;
+         }
+      };
+      final ThreadLocal<BufferedImage> images = new ThreadLocal<BufferedImage>() {
+         protected BufferedImage initialValue() {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+         }
+      };
+
+      int next = 0;
+      int frames = getFrameCount();
+      int batch = BATCH_PER_CORE * cores;
+      try {
+         for (int first = 0; first < frames; first += batch) {
+            ArrayList<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+            for (int f = first; f < Math.min(frames, first + batch); f++) {
+               final long t = frameTime(f);
+               while (next < events.getCount() && events.timeOf(next) <= t)
+                  panel.replayEvent(events.getEvent(next++));
+               final Pose pose = panel.getPose();
+               tasks.add(new Callable<byte[]>() {
+                  public byte[] call() throws IOException {
+                     DrawingPanel p = panels.get();
+                     BufferedImage img = images.get();
+                     p.setPose(pose);
+                     Graphics2D g2 = img.createGraphics();
+                     p.renderFrame(g2, (int)(t / DrawingPanel.CLOUD_PERIOD));
+                     g2.dispose();
+                     return out.encode(img);
+                  }
+               });
+            }
+            List<Future<byte[]>> done = pool.invokeAll(tasks);
+            for (int i = 0; i < done.size(); i++)
+               out.write(first + i, done.get(i).get());
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         throw new IOException("Unable to render frame", e.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   /*
+    * Turns rendered frames into output
+    */
+   public interface FrameEncoder {
+      // Called on the worker threads; img is reused after the call
+      byte[] encode(BufferedImage img) throws IOException;
+      // Called in frame order
+      void write(int index, byte[] data) throws IOException;
+   }
+
+   /*
+    * Write the frames as numbered PNG files in dir
+    */
+   public void exportPNG(final File dir) throws IOException {
+      dir.mkdirs();
+      export(new FrameEncoder() {
+         public byte[] encode(BufferedImage img) throws IOException {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(img, "png", png);
+            return png.toByteArray();
+         }
+
+         public void write(int index, byte[] data) throws IOException {
+            OutputStream out = new FileOutputStream(new File(dir, String.format("frame_%06d.png", index)));
+            try {
+               out.write(data);
+            } finally {
+               out.close();
+            }
+         }
+      });
+   }
+
+   /*
+    * Write the frames as a raw RGB stream in file
+    */
+   public void exportRaw(File file) throws IOException {
+      final OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20);
+      try {
+         export(new FrameEncoder() {
+            public byte[] encode(BufferedImage img) {
+               int[] pixels = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+               byte[] rgb = new byte[pixels.length * 3];
+               for (int i = 0, o = 0; i < pixels.length; i++, o += 3) {
+                  rgb[o] = (byte)(pixels[i] >> 16);
+                  rgb[o + 1] = (byte)(pixels[i] >> 8);
+                  rgb[o + 2] = (byte)pixels[i];
+               }
+               return rgb;
+            }
+
+            public void write(int index, byte[] data) throws IOException {
+               out.write(data);
+            }
+         });
+      } finally {
+         out.close();
+      }
+   }
+
+   public static void main(String[] args) {
+      if (System.getProperty("java.awt.headless") == null)
+         System.setProperty("java.awt.headless", "true");
+      String usage = "Usage: java FrameExporter <events file> <output dir | file.rgb> [fps [width height]]";
+      if (args.length != 2 && args.length != 3 && args.length != 5) {
+         System.out.println(usage);
+         return;
+      }
+      int fps = DEFAULT_FPS;
+      int width = Digger.FRAME_WIDTH;
+      int height = Digger.FRAME_HEIGHT;
+      try {
+         if (args.length > 2)
+            fps = Integer.parseInt(args[2]);
+         if (args.length > 3) {
+            width = Integer.parseInt(args[3]);
+            height = Integer.parseInt(args[4]);
+         }
+      } catch (NumberFormatException e) {
+         System.out.println("Invalid number: " + e.getMessage());
+         System.out.println(usage);
+         return;
+      }
+      if (fps <= 0 || width <= 0 || height <= 0) {
+         System.out.println("fps, width and height must be positive");
+         System.out.println(usage);
+         return;
+      }
+
+      try {
+         FrameExporter exporter = new FrameExporter(args[0], width, height, fps);
+         long start = System.currentTimeMillis();
+         if (args[1].endsWith(RAW_SUFFIX))
+            exporter.exportRaw(new File(args[1]));
+         else
+            exporter.exportPNG(new File(args[1]));
+         System.out.println("Exported " + exporter.getFrameCount() + " frames in "
+               + (System.currentTimeMillis() - start) + " ms");
+      } catch (IOException e) {
+         System.out.println("Unable to export " + args[0] + ": " + e.getMessage());
+      }
+      System.exit(0);
+   }
+}
@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.RepaintManager;
+import javax.swing.SwingUtilities;
+import java.awt.Toolkit;
+
+/*
+ * Paces the frames of every DrawingPanel on the display refresh rate
+ * (60, 120 or 144 Hz), and only while something changes.
+ *
+ * A client requests a frame, right away or after a delay (e.g. the next
+ * step of the cloud animation). Frames start on the boundaries of the
+ * refresh period ("vsync slots"); at most one runs per slot, on the event
+ * dispatch thread, and calls every client whose requested time has come,
+ * then paints the regions they dirtied at once; the others wait for a
+ * later frame. Nothing runs and the scheduler thread
+ * stays parked while no frame is requested.
+ *
+ * When a slot comes while the previous frame is still running, the slot
+ * is dropped; after MISSES_TO_SLOW dropped slots, without MISSES_FORGOTTEN
+ * frames in time in a row between them, frames are only started every 2
+ * (then 4, 8) slots, and the rate is raised back after FRAMES_TO_RECOVER
+ * frames in time in a row.
+ *
+ * Swing already renders the windows with page flipping (a BufferStrategy
+ * per window, in the RepaintManager), so frames only need to paint.
+ */
+public class FrameScheduler implements Runnable {
+
+   public static final int[] RATES = {60, 120, 144};
+   public static final int DEFAULT_RATE = 60;
+
+   private static final int MISSES_TO_SLOW = 3;
+   private static final int MISSES_FORGOTTEN = 10;
+   private static final int FRAMES_TO_RECOVER = 120;
+   private static final int MAX_DIVISOR = 8;
+
+   /*
+    * Called on the event dispatch thread at a frame it requested
+    */
+   public interface Client {
+      void frame(long now);
+   }
+
+   private static FrameScheduler shared;
+
+   private volatile long period;
+   private final Thread thread;
+   private volatile boolean running;
+   // Earliest time a frame is requested for (System.nanoTime), or
+   // Long.MAX_VALUE when idle, and the clients requesting a frame with
+   // the earliest time each one requests it for (this lock)
+   private long due = Long.MAX_VALUE;
+   private LinkedHashMap<Client, Long> requests = new LinkedHashMap<Client, Long>();
+   // Event dispatch thread only
+   private ArrayList<Client> calling = new ArrayList<Client>();
+   // Scheduler thread only (divisor is also read by getEffectiveRate)
+   private long origin;
+   private long lastSlot;
+   private volatile int divisor = 1;
+   private int misses;
+   private int inTime;
+
+   private volatile boolean inFlight;
+   private volatile long frames;
+   private volatile long dropped;
+
+   private final Runnable frame = new Runnable() {
+      public void run() {
+         try {
+            runFrame();
+         } finally {
+            inFlight = false;
+         }
+      }
+   };
+
+   public FrameScheduler(int rate) {
+      setRate(rate);
+      thread = new Thread(this, "Frame scheduler");
+      thread.setDaemon(true);
+   }
+
+   /*
+    * The scheduler of the panels of the application, started on first use
+    */
+   public static synchronized FrameScheduler getShared() {
+      if (shared == null) {
+         shared = new FrameScheduler(DEFAULT_RATE);
+         shared.start();
+      }
+      return shared;
+   }
+
+   public void setRate(int rate) {
+      period = 1000000000L / rate;
+      LockSupport.unpark(thread);
+   }
+
+   public int getRate() {
+      return (int)Math.round(1e9 / period);
+   }
+
+   /*
+    * Frames per second actually targeted, lower than the rate while
+    * frames miss their budget
+    */
+   public double getEffectiveRate() {
+      return 1e9 / (period * divisor);
+   }
+
+   public long getFrameCount() {
+      return frames;
+   }
+
+   public long getDroppedCount() {
+      return dropped;
+   }
+
+   public void start() {
+      running = true;
+      thread.start();
+   }
+
+   public void stop() {
+      running = false;
+      LockSupport.unpark(thread);
+   }
+
+   public void requestFrame(Client c) {
+      requestFrame(c, 0);
+   }
+
+   /*
+    * Request a frame for c in delay ms at the earliest; from any thread
+    */
+   public void requestFrame(Client c, long delay) {
+      long t = System.nanoTime() + delay * 1000000L;
+      synchronized (this) {
+         Long requested = requests.get(c);
+         if (requested == null || t < requested.longValue())
+            requests.put(c, Long.valueOf(t));
+         if (t >= due)
+            return;
+         due = t;
+      }
+      LockSupport.unpark(thread);
+   }
+
+   public void run() {
+      origin = lastSlot = System.nanoTime();
+      while (running) {
+         long d;
+         synchronized (this) {
+            d = due;
+         }
+         if (d == Long.MAX_VALUE) {
+            // Idle until a frame is requested
+            LockSupport.park(this);
+            continue;
+         }
+         long p = period * divisor;
+         long earliest = Math.max(d, lastSlot + p);
+         long slot = origin + ceil(earliest - origin, p);
+         long now = System.nanoTime();
+         if (slot > now) {
+            // Woken up early by a request or a new rate: check again
+            LockSupport.parkNanos(this, slot - now);
+            continue;
+         }
+         lastSlot = slot;
+         if (inFlight) {
+            dropped++;
+            inTime = 0;
+            if (++misses >= MISSES_TO_SLOW && divisor < MAX_DIVISOR) {
+               divisor *= 2;
+               misses = 0;
+            }
+            continue;
+         }
+         if (++inTime == MISSES_FORGOTTEN)
+            misses = 0;
+         if (inTime >= FRAMES_TO_RECOVER && divisor > 1) {
+            divisor /= 2;
+            inTime = 0;
+         }
+         inFlight = true;
+         SwingUtilities.invokeLater(frame);
+      }
+   }
+
+   /*
+    * x rounded up to a multiple of p
+    */
+   private static long ceil(long x, long p) {
+      return (x + p - 1) / p * p;
+   }
+
+   private void runFrame() {
+      long now = System.nanoTime();
+      synchronized (this) {
+         long next = Long.MAX_VALUE;
+         Iterator<Map.Entry<Client, Long>> i = requests.entrySet().iterator();
+         while (i.hasNext()) {
+            Map.Entry<Client, Long> r = i.next();
+            long t = r.getValue().longValue();
+            if (t <= now) {
+               calling.add(r.getKey());
+               i.remove();
+            } else
+               next = Math.min(next, t);
+         }
+         due = next;
+      }
+      for (int i = 0; i < calling.size(); i++)
+         calling.get(i).frame(now);
+      calling.clear();
+      RepaintManager.currentManager(null).paintDirtyRegions();
+      Toolkit.getDefaultToolkit().sync();
+      frames++;
+   }
+}
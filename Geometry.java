@@ -0,0 +1,128 @@
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.HashMap;
+
+/*
+ * What a shape fills, strokes and picks, in its local coordinate system:
+ * the geometry of a MyRectangle, or of a node of a SceneStore.
+ *
+ * Geometries are immutable and interned by shape type (the sides given
+ * to makeShape) and dimensions: all the bases, arms and buckets of a type
+ * share one Geometry, and each shape only keeps its transform and color.
+ * Its polygon, shapes and bounds must therefore never be modified.
+ */
+public final class Geometry {
+
+   private static final BasicStroke OUTLINE_STROKE = new BasicStroke(2);
+   private static final BasicStroke HINGE_STROKE = new BasicStroke(20);
+   private static final Arc2D BUCKET_ARC = new Arc2D.Double(-5,-5, 80, 120, 0, 180, Arc2D.PIE);
+   private static final Line2D HINGE = new Line2D.Double(0, 0, 10, 10);
+
+   private static final HashMap<Long, Geometry> interned = new HashMap<Long, Geometry>();
+
+   final int sides;
+   final int width;
+   final int height;
+   final Polygon body;        // picking, and the selection outline
+   final Shape fill;
+   final Shape line;
+   final BasicStroke stroke;
+   final Rectangle2D bounds;  // of the painted area, strokes excluded
+   final double strokePad;    // farthest the strokes go beyond bounds
+   final Collider collider;   // of fill
+   // The bucket (sides 0) fills an arc in dark gray, and strokes its hinge
+   final boolean curve;
+
+   private Geometry(int sides, int width, int height) {
+      this.sides = sides;
+      this.width = width;
+      this.height = height;
+      body = makeShape(sides, width, height);
+      curve = sides == 0;
+      if (curve) {
+         fill = BUCKET_ARC;
+         line = HINGE;
+         stroke = HINGE_STROKE;
+      } else {
+         fill = body;
+         line = body;
+         stroke = OUTLINE_STROKE;
+      }
+      Rectangle2D b = body.getBounds2D();
+      if (curve)
+         b.add(new Rectangle2D.Double(-5, -5, 80, 60));
+      bounds = b;
+      // The line, and the body for the selection outline, as stroked
+      Rectangle2D stroked = stroke.createStrokedShape(line).getBounds2D();
+      stroked.add(stroke.createStrokedShape(body).getBounds2D());
+      strokePad = Math.max(0, Math.max(Math.max(b.getMinX() - stroked.getMinX(),
+            b.getMinY() - stroked.getMinY()), Math.max(stroked.getMaxX() - b.getMaxX(),
+            stroked.getMaxY() - b.getMaxY())));
+      collider = new Collider(fill);
+   }
+
+   /*
+    * The geometry of the shapes with sides and these dimensions
+    */
+   public static synchronized Geometry get(int sides, int width, int height) {
+      Long key = Long.valueOf((long)sides << 48 ^ (long)(width & 0xFFFFFF) << 24 ^ (height & 0xFFFFFF));
+      Geometry g = interned.get(key);
+      if (g == null) {
+         g = new Geometry(sides, width, height);
+         interned.put(key, g);
+      }
+      return g;
+   }
+
+   /*
+    * Number of distinct geometries built so far
+    */
+   public static synchronized int getInternedCount() {
+      return interned.size();
+   }
+
+   public int getSides() {
+      return sides;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   /*
+    * The outline of a shape from its number of sides: a rectangle (4), a
+    * pentagon (5), the preset bent arm (6, the dimensions are not used),
+    * or the rectangle holding the arc of the bucket (0)
+    */
+   static Polygon makeShape(int sides, int bodyW, int bodyH) {
+      int startX = 0, startY = 0;
+      Polygon body = new Polygon();
+      if (sides == 0 || sides == 4) {
+         body.addPoint(startX,startY);
+         body.addPoint(startX,startY+bodyH);
+         body.addPoint(startX+bodyW, startY+bodyH);
+         body.addPoint(startX+bodyW,startY);
+      }
+      if (sides == 5) {
+         body.addPoint(startX,startY);
+         body.addPoint(startX,startY+bodyH);
+         body.addPoint(startX+bodyW,startY+bodyH);
+         body.addPoint(startX+bodyW,+bodyH/2);
+         body.addPoint(startX+bodyW/2, startY);
+      }
+      if (sides == 6) {
+         //this is for extendable arm
+         body.addPoint(startX,startY);
+         body.addPoint(50,0);
+         body.addPoint(60,75);
+         body.addPoint(60,150);
+         body.addPoint(25,150);
+         body.addPoint(25,75);
+      }
+      return body;
+   }
+}
@@ -0,0 +1,30 @@
+import java.awt.*;
+import java.awt.geom.*;
+
+/*
+ * A hierarchical model as seen by the DisplayList and DrawingPanel:
+ * something that paints itself, has bounds and can be picked.
+ *
+ * Implemented by MyRectangle (the root of a hierarchy of shape objects)
+ * and by SceneStore.Rig (a hierarchy laid out in flat arrays).
+ * Coordinates are in the coordinate system of the model's parent, e.g.
+ * the digger coordinate system.
+ */
+public interface Model {
+
+   /*
+    * Paint the model; rootAT must be the current transform of g2, and is
+    * the one of g2 when the call returns.
+    */
+   void paint(Graphics2D g2, AffineTransform rootAT);
+
+   /*
+    * Bounding box of the whole model (strokes are not included)
+    */
+   Rectangle2D getWorldBounds();
+
+   /*
+    * The part of the model under point, null if none
+    */
+   Object selectedShape(Point2D point);
+}
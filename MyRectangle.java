@@ -2,29 +2,61 @@ import java.awt.*;
 import java.awt.geom.*;
 import java.util.*;
 
-public class MyRectangle extends Polygon { 
+public class MyRectangle implements Model { 
    
    private static final Color GREEN = Color.GREEN;
    private static final Color ORANGE = Color.ORANGE;
    private final static BasicStroke wideStroke = new BasicStroke(5.0f);
+   final static Ellipse2D anchor = new Ellipse2D.Double(0, 0, 10, 10);
    private static final int COORD_LENGTH = 5;
 
    private Color color;
    private AffineTransform trans  = new AffineTransform();
+   // Composition of the trans of every ancestor and of this shape, and
+   // its inverse. Both are recomputed only when dirty, i.e. after this
+   // shape's trans or the trans of one of its ancestors has changed.
+   private AffineTransform worldTrans = new AffineTransform();
+   private AffineTransform worldInv;
+   private boolean worldDirty = true;
+   private boolean invDirty = true;
+   // Bounding box of this shape and all its descendants in the digger
+   // coordinate system, used to skip subtrees outside of the clip when
+   // painting and when picking. Dirty with the world transform, and also
+   // when the transform of a descendant changes.
+   private Rectangle2D.Double worldBounds = new Rectangle2D.Double();
+   private boolean boundsDirty = true;
+   // Margin around worldBounds covering the strokes of the subtree, in the
+   // digger coordinate system: the stroke pad of each geometry times the
+   // largest scale of its world transform. Dirty with worldBounds.
+   private double strokePad;
+   // Scratch objects of picking and painting, allocated on first use
+   private Point2D.Double pickPoint;
+   private Rectangle clipBounds;
+   private double[] corners;
+   private final static AffineTransform IDENTITY = new AffineTransform();
+   // What the shape fills and strokes, in its local coordinate system,
+   // shared by the shapes of the same type and dimensions, and the same
+   // geometry in device space for deviceRoot followed by the world
+   // transform, allocated when first painted. The device paths are
+   // rebuilt only when the world transform is dirty or painting starts
+   // from another transform, and are painted under the identity
+   // transform. The line is stroked with deviceStroke, the geometry stroke
+   // scaled to device space, unless the transform is not a uniform scale:
+   // the stroked outline is then filled. Painting a PaintPath does not
+   // allocate its path iterator as painting a Path2D does.
+   private final Geometry geometry;
+   private PaintPath deviceFill;
+   private PaintPath deviceLine;
+   private BasicStroke deviceStroke;
+   private PaintPath deviceAnchor;
+   private AffineTransform deviceRoot;
+   private AffineTransform deviceAT;
+   private boolean deviceDirty = true;
    private MyRectangle parent;
    private ArrayList<MyRectangle> children;
-   private Polygon body;
-   private int startX;
-   private int startY;
-   private int numSides;
-   private int bodyW;
-   private int bodyH;
    public boolean selected=false;
    int objectType;
    
-   
-   private boolean curve = false; 
-   
    private static boolean debug = true;
 
    public static void setDebug(boolean b) {
@@ -32,6 +64,10 @@ public class MyRectangle extends Polygon {
       System.out.println("debug called");
    }
 
+   static boolean isDebug() {
+      return debug;
+   }
+
    /*
     * The constructor of MyRectangle assigns the following fields that
     * define the rectangle geometry and bare appearance. 
@@ -64,28 +100,92 @@ public class MyRectangle extends Polygon {
     * Link to update
     */
    public MyRectangle(AffineTransform t, int w, int h, Color c, MyRectangle p, int sides, int ot) {
-      body = new Polygon();
-	    bodyW = w;
-	    bodyH = h;
-	    startX = 0;
-	    startY = 0;
       trans = t;
       color = c;
       parent = p;
       children = new ArrayList<MyRectangle>();
-      numSides = sides;
       objectType = ot;
-      makeShape(numSides);
+      geometry = Geometry.get(sides, w, h);
    }
    
    public void addChild(MyRectangle r) {
       children.add(r);
    }
 
+   /*
+    * The returned transform is the live one: after modifying it in place
+    * call markDirty() so the cached world transforms are recomputed.
+    */
    public AffineTransform getTrans(){
 	   return trans;
    }
 
+   public void setTrans(AffineTransform t){
+      trans.setTransform(t);
+      markDirty();
+   }
+
+   /*
+    * Flag the cached world transform of this shape and of all its
+    * descendants as stale, as well as the bounds of its ancestors.
+    * A dirty shape always has dirty descendants (they are recomputed
+    * from their parent) and ancestors with dirty bounds (computed from
+    * their children), so the walks stop early.
+    */
+   public void markDirty(){
+      if (worldDirty)
+         return;
+      for (MyRectangle p = parent; p != null && !p.boundsDirty; p = p.parent)
+         p.boundsDirty = true;
+      markSubtreeDirty();
+   }
+
+   private void markSubtreeDirty(){
+      if (worldDirty)
+         return;
+      worldDirty = true;
+      invDirty = true;
+      boundsDirty = true;
+      deviceDirty = true;
+      for (MyRectangle r: children)
+         r.markSubtreeDirty();
+   }
+
+   /*
+    * Transform from the local coordinate system of this shape to the one
+    * of the root's parent (the digger coordinate system).
+    */
+   public AffineTransform getWorldTransform(){
+      if (worldDirty) {
+         if (parent == null)
+            worldTrans.setTransform(trans);
+         else {
+            worldTrans.setTransform(parent.getWorldTransform());
+            worldTrans.concatenate(trans);
+         }
+         worldDirty = false;
+         invDirty = true;
+      }
+      return worldTrans;
+   }
+
+   public AffineTransform getWorldInverse(){
+      AffineTransform w = getWorldTransform();
+      if (invDirty) {
+         if (worldInv == null)
+            worldInv = new AffineTransform();
+         try {
+            worldInv.setTransform(w);
+            worldInv.invert();
+         } catch (NoninvertibleTransformException e) {
+            e.printStackTrace();
+            worldInv.setToIdentity();
+         }
+         invDirty = false;
+      }
+      return worldInv;
+   }
+
   
    public MyRectangle getChild(){
   		return children.get(0);
@@ -94,68 +194,104 @@ public class MyRectangle extends Polygon {
    public MyRectangle getChild(int i){
       return children.get(i);
    }
+
+   public int getChildCount(){
+      return children.size();
+   }
   
+   /*
+    * The body is shared with the shapes of the same geometry: it must not
+    * be modified
+    */
    public Polygon getBody(){
- 		return body;
+ 		return geometry.body;
+   }
+
+   Geometry getGeometry(){
+      return geometry;
+   }
+
+   /*
+    * What paint fills with getFillColor, and strokes in dark gray with
+    * getLineStroke, in the local coordinate system
+    */
+   Shape getFillShape(){
+      return geometry.fill;
+   }
+
+   Collider getCollider(){
+      return geometry.collider;
+   }
+
+   Color getFillColor(){
+      return geometry.curve ? Color.DARK_GRAY : color;
+   }
+
+   Shape getLineShape(){
+      return geometry.line;
+   }
+
+   BasicStroke getLineStroke(){
+      return geometry.stroke;
+   }
+
+   /*
+    * Bounds of the painted area in the local coordinate system (strokes
+    * are not included), not to be modified
+    */
+   Rectangle2D getLocalBounds(){
+      return geometry.bounds;
    }
   
 
-  public void makeShape (int sides){//NOT INITIALIZE
-  	if(sides==0){
-  		body.addPoint(startX,startY);
-		body.addPoint(startX,startY+bodyH);
-		body.addPoint(startX+bodyW, startY+bodyH);
-		body.addPoint(startX+bodyW,startY);
-		curve = true;
-  	}
-	  if (sides == 4){
-			body.addPoint(startX,startY);
-			
-			body.addPoint(startX,startY+bodyH);
-			body.addPoint(startX+bodyW, startY+bodyH);
-			body.addPoint(startX+bodyW,startY);
-
-      	}
-		if (sides== 5){
-			body.addPoint(startX,startY);
-			body.addPoint(startX,startY+bodyH);
-			body.addPoint(startX+bodyW,startY+bodyH);
-			body.addPoint(startX+bodyW,+bodyH/2);
-			
-			body.addPoint(startX+bodyW/2, startY); 	
- 	 	}
-
-  	if (sides == 6){
-			//this is for extendable arm
-			body.addPoint(startX,startY);
-			body.addPoint(50,0);
-			body.addPoint(60,75);
-			body.addPoint(60,150);
-			body.addPoint(25,150);
-			body.addPoint(25,75);	
- 		}
+  /*
+   * Bounding box, in the digger coordinate system, of this shape and of
+   * all its descendants (strokes are not included).
+   */
+  public Rectangle2D getWorldBounds() {
+      return (Rectangle2D)worldBounds().clone();
   }
 
-  public MyRectangle selectedShape(Point2D point) {
-      AffineTransform inv = null;
+  /*
+   * The same into dst, without allocating
+   */
+  public Rectangle2D getWorldBounds(Rectangle2D dst) {
+      dst.setRect(worldBounds());
+      return dst;
+  }
 
-      try {
-        inv = trans.createInverse();
-      } catch (NoninvertibleTransformException e) {
-        e.printStackTrace();
-        return null;
+  private Rectangle2D.Double worldBounds() {
+      if (boundsDirty) {
+         worldBounds.setRect(getWorldTransform().createTransformedShape(getLocalBounds()).getBounds2D());
+         strokePad = geometry.strokePad * maxScale(getWorldTransform());
+         for (MyRectangle c: children) {
+            worldBounds.add(c.worldBounds());
+            strokePad = Math.max(strokePad, c.strokePad);
+         }
+         boundsDirty = false;
       }
+      return worldBounds;
+  }
 
-      Point2D pInv = inv.transform(point, null);
-      //System.out.println("Transform point " + pInv.getX() + " "+ pInv.getY());
-      System.out.println(body.getBounds());
-      if (body.contains(pInv))
+  /*
+   * The point is given in the digger coordinate system (the one of the
+   * root's parent); each shape brings it in its own local coordinate
+   * system with its cached world inverse.
+   */
+  public MyRectangle selectedShape(Point2D point) {
+      if (!worldBounds().contains(point))
+        return null;
+      if (pickPoint == null)
+         pickPoint = new Point2D.Double();
+      getWorldInverse().transform(point, pickPoint);
+      //System.out.println("Transform point " + pickPoint.getX() + " "+ pickPoint.getY());
+      if (geometry.body.contains(pickPoint))
         return this;
       else {
         if(children.size() != 0){
           for(MyRectangle r: children){
            // System.out.println(r.objectType);
-            MyRectangle c = r.selectedShape(pInv);
+            MyRectangle c = r.selectedShape(point);
             if(c != null)
               return c;
           }
@@ -167,27 +303,149 @@ public class MyRectangle extends Polygon {
    public void paint(Graphics2D g2) {
       
       AffineTransform saveAT = g2.getTransform();
-      g2.transform(trans);
+      paint(g2, saveAT);
+   }
 
+   /*
+    * Paint without allocating: rootAT must be the current transform of g2
+    * (the Graphics2D API only returns copies of it), and is restored at
+    * the end.
+    */
+   public void paint(Graphics2D g2, AffineTransform rootAT) {
+      // The clip in device space: asked under the identity transform since
+      // a rotated clip is returned through newly allocated shapes. Left
+      // unchanged (i.e. unbounded) by getClipBounds when there is no clip
+      if (clipBounds == null)
+         clipBounds = new Rectangle();
+      clipBounds.setBounds(Integer.MIN_VALUE / 2, Integer.MIN_VALUE / 2,
+            Integer.MAX_VALUE, Integer.MAX_VALUE);
+      g2.setTransform(IDENTITY);
+      g2.getClipBounds(clipBounds);
+      paint(g2, rootAT, clipBounds);
+      g2.setTransform(rootAT);
+   }
 
-      g2.setColor(color);
-      if(!curve){
-        g2.fillPolygon(body);
-        g2.setColor(Color.DARK_GRAY);
-   	  g2.setStroke( new BasicStroke(2) );
-   	  g2.draw(body);
+   /*
+    * Whether the bounds of this subtree, brought in device space by rootAT
+    * and padded there for its strokes scaled by rootAT and a pixel of
+    * antialiasing, miss the clip
+    */
+   private boolean outside(AffineTransform rootAT, Rectangle clip) {
+      Rectangle2D b = worldBounds();
+      double x0 = b.getMinX(), y0 = b.getMinY();
+      double x1 = b.getMaxX(), y1 = b.getMaxY();
+      if (corners == null)
+         corners = new double[8];
+      corners[0] = x0; corners[1] = y0;
+      corners[2] = x1; corners[3] = y0;
+      corners[4] = x1; corners[5] = y1;
+      corners[6] = x0; corners[7] = y1;
+      rootAT.transform(corners, 0, corners, 0, 4);
+      double minX = corners[0], maxX = corners[0], minY = corners[1], maxY = corners[1];
+      for (int i = 2; i < 8; i += 2) {
+         minX = Math.min(minX, corners[i]);
+         maxX = Math.max(maxX, corners[i]);
+         minY = Math.min(minY, corners[i + 1]);
+         maxY = Math.max(maxY, corners[i + 1]);
       }
-      else{
-	g2.setColor(Color.DARK_GRAY);
-        g2.fill(new Arc2D.Double(-5,-5, 80, 120, 0, 180, Arc2D.PIE));
-        g2.setStroke( new BasicStroke(20) );
-        g2.drawLine(0, 0, 10, 10); 
+      double pad = strokePad * maxScale(rootAT) + 1;
+      minX -= pad;
+      minY -= pad;
+      maxX += pad;
+      maxY += pad;
+      return maxX < clip.x || maxY < clip.y
+            || minX > (double)clip.x + clip.width || minY > (double)clip.y + clip.height;
+   }
+
+   /*
+    * Bring the geometry of the shape in device space for rootAT, unless
+    * it already is
+    */
+   private void updateDevice(AffineTransform rootAT) {
+      if (deviceRoot == null) {
+         deviceFill = new PaintPath();
+         deviceLine = new PaintPath();
+         deviceAnchor = new PaintPath();
+         deviceRoot = new AffineTransform();
+         deviceAT = new AffineTransform();
+      } else if (!deviceDirty && deviceRoot.equals(rootAT))
+         return;
+      deviceRoot.setTransform(rootAT);
+      deviceAT.setTransform(rootAT);
+      deviceAT.concatenate(getWorldTransform());
+      deviceFill.reset();
+      deviceFill.append(geometry.fill.getPathIterator(deviceAT));
+      deviceLine.reset();
+      double scale = uniformScale(deviceAT);
+      BasicStroke stroke = geometry.stroke;
+      if (scale > 0) {
+         deviceLine.append(geometry.line.getPathIterator(deviceAT));
+         if (deviceStroke == null || deviceStroke.getLineWidth() != (float)(stroke.getLineWidth() * scale))
+            deviceStroke = new BasicStroke((float)(stroke.getLineWidth() * scale));
+      } else {
+         deviceLine.append(stroke.createStrokedShape(geometry.line).getPathIterator(deviceAT));
+         deviceStroke = null;
       }
+      deviceAnchor.reset();
+      deviceAnchor.append(anchor.getPathIterator(deviceAT));
+      deviceDirty = false;
+   }
+
+   /*
+    * The largest factor by which t scales a length: the largest singular
+    * value of its linear part
+    */
+   private static double maxScale(AffineTransform t) {
+      double a = t.getScaleX(), b = t.getShearX(), c = t.getShearY(), d = t.getScaleY();
+      double sum = a * a + b * b + c * c + d * d, det = a * d - b * c;
+      return Math.sqrt((sum + Math.sqrt(Math.max(0, sum * sum - 4 * det * det))) / 2);
+   }
+
+   /*
+    * The scale factor of t when it is a similarity (rotation, translation
+    * and the same scale on both axes), -1 otherwise
+    */
+   private static double uniformScale(AffineTransform t) {
+      double x = t.getScaleX() * t.getScaleX() + t.getShearY() * t.getShearY();
+      double y = t.getShearX() * t.getShearX() + t.getScaleY() * t.getScaleY();
+      double dot = t.getScaleX() * t.getShearX() + t.getShearY() * t.getScaleY();
+      if (Math.abs(x - y) > 1e-9 * x || Math.abs(dot) > 1e-9 * x || x == 0)
+         return -1;
+      return Math.sqrt(x);
+   }
+
+   /*
+    * rootAT is the transform of the Graphics2D context when painting of the
+    * hierarchy started; g2 is under the identity transform and each shape
+    * fills its cached device space paths, so nothing is transformed while
+    * the shape and its ancestors do not move.
+    * Subtrees which bounds are outside of clip (in device space) are skipped.
+    */
+   private void paint(Graphics2D g2, AffineTransform rootAT, Rectangle clip) {
+
+      if (outside(rootAT, clip))
+         return;
+
+      updateDevice(rootAT);
+
+      g2.setColor(getFillColor());
+      g2.fill(deviceFill);
+      g2.setColor(Color.DARK_GRAY);
+      if (deviceStroke != null) {
+         g2.setStroke(deviceStroke);
+         g2.draw(deviceLine);
+      } else
+         g2.fill(deviceLine);
+      // Left set as before painting was cached: the selection outline and
+      // the callers draw with it
+      g2.setStroke(geometry.stroke);
       
  	  
        if(selected){ 
     	     	  g2.setColor(Color.black);
-  	       	  g2.drawPolygon(body);
+    	     	  g2.setTransform(deviceAT);
+  	       	  g2.drawPolygon(geometry.body);
+  	       	  g2.setTransform(IDENTITY);
   	      	  selected=false;
        }
      // g2.drawPolygon(body);
@@ -201,26 +459,19 @@ public class MyRectangle extends Polygon {
        * the rectangle, if you wish.)
        */
       if (debug) {
-         // left top corner of rectangle is (0, 0) (uncomment below to see)
-         int CS_x = startX;
-         int CS_y = startY;
-         //System.out.println("rect top left corner " + CS_x + " "+ CS_y);
+         // left top corner of rectangle is (0, 0), i.e. (startX, startY)
+         //System.out.println("rect top left corner " + startX + " "+ startY);
 
          g2.setColor(Color.ORANGE);
-         g2.fill( new Ellipse2D.Double(CS_x,CS_y,10,10) );
+         g2.fill( deviceAnchor );
       }
 
       /*
        * Draw the children linked to that shape
        */ 
       
-      Iterator<MyRectangle> it = children.iterator();
-      while (it.hasNext()) {
-         MyRectangle r = it.next();
-         r.paint(g2);
-      }
-
-      g2.setTransform(saveAT);
+      for (int i = 0; i < children.size(); i++)
+         children.get(i).paint(g2, rootAT, clip);
       
    }
 }
@@ -0,0 +1,172 @@
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.Arrays;
+
+/*
+ * A path painted without allocating, e.g. the device paths of MyRectangle
+ * or a shape of the scene painted on every frame.
+ *
+ * Graphics2D fills and strokes a shape through its getPathIterator, with
+ * its transform or null when it is the identity. The Java 2D shapes
+ * return a new iterator each time, this path returns its own iterator,
+ * rewound. The path must therefore only be painted by one thread, and
+ * iterated once at a time: each panel or store keeps its own paths.
+ */
+public final class PaintPath implements Shape {
+
+   private byte[] types = new byte[16];
+   private double[] coords = new double[32];
+   private int numTypes;
+   private int numCoords;
+   private final int windingRule;
+   private final Iterator iterator = new Iterator();
+   private final double[] segment = new double[6];
+
+   // Coordinates read by each segment type of PathIterator
+   private static final int[] SEGMENT_COORDS = {2, 2, 4, 6, 0};
+
+   /*
+    * An empty path, of winding rule non-zero as a Path2D
+    */
+   public PaintPath() {
+      windingRule = PathIterator.WIND_NON_ZERO;
+   }
+
+   /*
+    * A copy of s
+    */
+   public PaintPath(Shape s) {
+      PathIterator pi = s.getPathIterator(null);
+      windingRule = pi.getWindingRule();
+      append(pi);
+   }
+
+   public void reset() {
+      numTypes = 0;
+      numCoords = 0;
+   }
+
+   /*
+    * Add the segments of pi, as Path2D.append(pi, false)
+    */
+   public void append(PathIterator pi) {
+      for (; !pi.isDone(); pi.next()) {
+         int type = pi.currentSegment(segment);
+         int n = SEGMENT_COORDS[type];
+         if (numTypes == types.length)
+            types = Arrays.copyOf(types, 2 * types.length);
+         if (numCoords + n > coords.length)
+            coords = Arrays.copyOf(coords, 2 * coords.length);
+         types[numTypes++] = (byte)type;
+         System.arraycopy(segment, 0, coords, numCoords, n);
+         numCoords += n;
+      }
+   }
+
+   public PathIterator getPathIterator(AffineTransform at) {
+      iterator.rewind(at);
+      return iterator;
+   }
+
+   public PathIterator getPathIterator(AffineTransform at, double flatness) {
+      return new FlatteningPathIterator(newIterator(at), flatness);
+   }
+
+   public Rectangle2D getBounds2D() {
+      if (numCoords == 0)
+         return new Rectangle2D.Double();
+      double minX = coords[0], maxX = coords[0], minY = coords[1], maxY = coords[1];
+      for (int i = 2; i < numCoords; i += 2) {
+         minX = Math.min(minX, coords[i]);
+         maxX = Math.max(maxX, coords[i]);
+         minY = Math.min(minY, coords[i + 1]);
+         maxY = Math.max(maxY, coords[i + 1]);
+      }
+      return new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+   }
+
+   public Rectangle getBounds() {
+      return getBounds2D().getBounds();
+   }
+
+   public boolean contains(double x, double y) {
+      return Path2D.contains(newIterator(null), x, y);
+   }
+
+   public boolean contains(Point2D p) {
+      return contains(p.getX(), p.getY());
+   }
+
+   public boolean contains(double x, double y, double w, double h) {
+      return Path2D.contains(newIterator(null), x, y, w, h);
+   }
+
+   public boolean contains(Rectangle2D r) {
+      return contains(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+   }
+
+   public boolean intersects(double x, double y, double w, double h) {
+      return Path2D.intersects(newIterator(null), x, y, w, h);
+   }
+
+   public boolean intersects(Rectangle2D r) {
+      return intersects(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+   }
+
+   /*
+    * An iterator of its own, for the iterations which may overlap painting
+    */
+   private PathIterator newIterator(AffineTransform at) {
+      Iterator i = new Iterator();
+      i.rewind(at);
+      return i;
+   }
+
+   /*
+    * The segments of the path, through at unless null or the identity
+    */
+   private class Iterator implements PathIterator {
+      private AffineTransform at;
+      private int typeIndex;
+      private int coordIndex;
+
+      void rewind(AffineTransform at) {
+         this.at = at == null || at.isIdentity() ? null : at;
+         typeIndex = 0;
+         coordIndex = 0;
+      }
+
+      public int getWindingRule() {
+         return windingRule;
+      }
+
+      public boolean isDone() {
+         return typeIndex >= numTypes;
+      }
+
+      public void next() {
+         coordIndex += SEGMENT_COORDS[types[typeIndex++]];
+      }
+
+      public int currentSegment(double[] dst) {
+         int type = types[typeIndex];
+         int n = SEGMENT_COORDS[type];
+         if (at == null)
+            System.arraycopy(coords, coordIndex, dst, 0, n);
+         else
+            at.transform(coords, coordIndex, dst, 0, n / 2);
+         return type;
+      }
+
+      public int currentSegment(float[] dst) {
+         int type = types[typeIndex];
+         int n = SEGMENT_COORDS[type];
+         if (at == null)
+            for (int i = 0; i < n; i++)
+               dst[i] = (float)coords[coordIndex + i];
+         else
+            at.transform(coords, coordIndex, dst, 0, n / 2);
+         return type;
+      }
+   }
+}
@@ -0,0 +1,32 @@
+/*
+ * State of the digger changed by user interaction: the transform of the
+ * entire object, the local transform of every shape of the hierarchy
+ * (as the 6 flat matrix coefficients, in the order given by
+ * DrawingPanel), the joint counters used to limit rotations and scaling,
+ * whether the bottle is grabbed, and the drag in progress (selected part
+ * and last mouse location).
+ *
+ * Used to bring the digger back to a known state, e.g. before replaying
+ * a recording from a given time.
+ */
+public class Pose {
+
+   double[] objectTransform = new double[6];
+   double[][] trans;
+   int rotateNumScale;
+   int rotateNumBent;
+   int rotateNumBucket;
+   int scaleNumArm;
+   boolean botSelected;
+   int selected;
+   int lastX;
+   int lastY;
+
+   public Pose(int shapes) {
+      trans = new double[shapes][6];
+   }
+
+   public int getShapeCount() {
+      return trans.length;
+   }
+}
@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/*
+ * Binary file format for the pose snapshots of a recording, written next
+ * to its EventLog file (same name followed by SUFFIX).
+ *
+ * A snapshot is the Pose of the digger before a given event of the
+ * recording, so seeking to an event only needs to restore the closest
+ * preceding snapshot and re-execute the events after it.
+ *
+ *    header    int     MAGIC ("DGPS")
+ *              int     VERSION
+ *              int     number of shapes of a pose
+ *    snapshot  int     index of the next event in the EventLog
+ *              int     time, relative to the EventLog base time
+ *              6 double    object transform
+ *              6 double    local transform, for each shape
+ *              4 int   rotateNumScale, rotateNumBent, rotateNumBucket, scaleNumArm
+ *              3 int   selected, lastX, lastY
+ *              byte    botSelected
+ *
+ * Snapshots have a fixed size (given the number of shapes) and are in
+ * increasing event index order.
+ */
+public class PoseLog {
+
+   public static final String SUFFIX = ".pose";
+   public static final int MAGIC = 0x44475053;
+   public static final int VERSION = 1;
+   public static final int HEADER_SIZE = 12;
+
+   public static int recordSize(int shapes) {
+      return 8 + 6 * 8 * (shapes + 1) + 7 * 4 + 1;
+   }
+
+   public static void putHeader(ByteBuffer buf, int shapes) {
+      buf.putInt(MAGIC);
+      buf.putInt(VERSION);
+      buf.putInt(shapes);
+   }
+
+   /*
+    * Check the header and return the number of shapes of the poses
+    */
+   public static int getHeader(ByteBuffer buf) throws IOException {
+      if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC)
+         throw new IOException("Not a pose log");
+      int version = buf.getInt();
+      if (version != VERSION)
+         throw new IOException("Unsupported pose log version " + version);
+      return buf.getInt();
+   }
+
+   public static void putSnapshot(ByteBuffer buf, int index, int time, Pose p) {
+      buf.putInt(index);
+      buf.putInt(time);
+      for (double d: p.objectTransform)
+         buf.putDouble(d);
+      for (double[] t: p.trans)
+         for (double d: t)
+            buf.putDouble(d);
+      buf.putInt(p.rotateNumScale);
+      buf.putInt(p.rotateNumBent);
+      buf.putInt(p.rotateNumBucket);
+      buf.putInt(p.scaleNumArm);
+      buf.putInt(p.selected);
+      buf.putInt(p.lastX);
+      buf.putInt(p.lastY);
+      buf.put((byte)(p.botSelected ? 1 : 0));
+   }
+
+   /*
+    * Event index of the snapshot starting at offset
+    */
+   public static int getIndex(ByteBuffer buf, int offset) {
+      return buf.getInt(offset);
+   }
+
+   public static int getTime(ByteBuffer buf, int offset) {
+      return buf.getInt(offset + 4);
+   }
+
+   public static Pose getPose(ByteBuffer buf, int offset, int shapes) {
+      Pose p = new Pose(shapes);
+      int o = offset + 8;
+      for (int i = 0; i < 6; i++, o += 8)
+         p.objectTransform[i] = buf.getDouble(o);
+      for (double[] t: p.trans)
+         for (int i = 0; i < 6; i++, o += 8)
+            t[i] = buf.getDouble(o);
+      p.rotateNumScale = buf.getInt(o);
+      p.rotateNumBent = buf.getInt(o + 4);
+      p.rotateNumBucket = buf.getInt(o + 8);
+      p.scaleNumArm = buf.getInt(o + 12);
+      p.selected = buf.getInt(o + 16);
+      p.lastX = buf.getInt(o + 20);
+      p.lastY = buf.getInt(o + 24);
+      p.botSelected = buf.get(o + 28) != 0;
+      return p;
+   }
+}
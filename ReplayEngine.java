@@ -0,0 +1,280 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/*
+ * Paced playback of an EventLog file.
+ *
+ * The file is memory mapped, so opening a recording does not read it and
+ * any event can be decoded from its index (records have a fixed size).
+ * A sparse index keeps the time of every INDEX_STRIDE-th event so that
+ * seeking to a time is a binary search over the index followed by a short
+ * scan of the records.
+ *
+ * Events are delivered when their recorded time is due, scaled by the
+ * speed (MIN_SPEED to MAX_SPEED), instead of after a constant sleep.
+ * All due events are delivered before the listener is told a frame can
+ * be painted, so fast playback does not paint every event.
+ *
+ * When the recording has a PoseLog file, its snapshots are mapped too and
+ * getSnapshotFor gives the closest pose preceding an event, from which
+ * the listener only has to re-execute the remaining events after a seek.
+ */
+public class ReplayEngine {
+
+   public static final double MIN_SPEED = 0.25;
+   public static final double MAX_SPEED = 64;
+   public static final int INDEX_STRIDE = 256;
+
+   /*
+    * Receives the events of a replay, on the replay thread
+    */
+   public interface Listener {
+      // An event which time is due
+      void replayEvent(InputEvent e);
+      // All due events were delivered: the frame can be painted
+      void replayFrame();
+      // Called after a seek, before the events from the new position:
+      // the listener has to bring its state to the one at the given event
+      void replaySeek(int index);
+   }
+
+   private MappedByteBuffer map;
+   private long baseTime;
+   private int count;
+   private int[] index;
+
+   private MappedByteBuffer poses;
+   private int poseShapes;
+   private int poseSize;
+   private int poseCount;
+
+   private Component source;
+   private Listener listener;
+
+   // Playback position: next event to deliver, and the wall clock time
+   // at which the event time posTime was (or would have been) delivered
+   private int position;
+   private long posTime;
+   private long posWall;
+   private double speed = 1;
+   private boolean seeked;
+
+   public ReplayEngine(String file, Component source, Listener listener) throws IOException {
+      FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+      try {
+         map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      } finally {
+         ch.close();
+      }
+      baseTime = EventLog.getHeader(map.duplicate());
+      count = (map.capacity() - EventLog.HEADER_SIZE) / EventLog.RECORD_SIZE;
+      this.source = source;
+      this.listener = listener;
+
+      index = new int[(count + INDEX_STRIDE - 1) / INDEX_STRIDE];
+      for (int i = 0; i < index.length; i++)
+         index[i] = timeOf(i * INDEX_STRIDE);
+
+      Path posePath = Paths.get(file + PoseLog.SUFFIX);
+      if (Files.exists(posePath)) {
+         ch = FileChannel.open(posePath, StandardOpenOption.READ);
+         try {
+            poses = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+         } finally {
+            ch.close();
+         }
+         poseShapes = PoseLog.getHeader(poses.duplicate());
+         poseSize = PoseLog.recordSize(poseShapes);
+         poseCount = (poses.capacity() - PoseLog.HEADER_SIZE) / poseSize;
+      }
+   }
+
+   public int getCount() {
+      return count;
+   }
+
+   /*
+    * Time of an event, in ms from the start of the recording
+    */
+   public int timeOf(int i) {
+      return map.getInt(offsetOf(i) + EventLog.RECORD_SIZE - 4);
+   }
+
+   /*
+    * Duration of the recording, in ms
+    */
+   public int getDuration() {
+      return count == 0 ? 0 : timeOf(count - 1);
+   }
+
+   public InputEvent getEvent(int i) {
+      ByteBuffer buf = map.duplicate();
+      buf.position(offsetOf(i));
+      return EventLog.getEvent(buf, source, baseTime);
+   }
+
+   private static int offsetOf(int i) {
+      return EventLog.HEADER_SIZE + i * EventLog.RECORD_SIZE;
+   }
+
+   private int poseOffset(int s) {
+      return PoseLog.HEADER_SIZE + s * poseSize;
+   }
+
+   /*
+    * Last snapshot taken at or before event index, -1 if none
+    */
+   public int getSnapshotFor(int i) {
+      int lo = 0, hi = poseCount - 1, s = -1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         if (PoseLog.getIndex(poses, poseOffset(mid)) <= i) {
+            s = mid;
+            lo = mid + 1;
+         } else
+            hi = mid - 1;
+      }
+      return s;
+   }
+
+   /*
+    * Index of the first event following snapshot s
+    */
+   public int getSnapshotIndex(int s) {
+      return PoseLog.getIndex(poses, poseOffset(s));
+   }
+
+   public Pose getSnapshot(int s) {
+      return PoseLog.getPose(poses, poseOffset(s), poseShapes);
+   }
+
+   /*
+    * Index of the first event at or after time (count if none)
+    */
+   public int indexOf(long time) {
+      int lo = 0, hi = index.length - 1, block = 0;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         if (index[mid] < time) {
+            block = mid;
+            lo = mid + 1;
+         } else
+            hi = mid - 1;
+      }
+      int i = block * INDEX_STRIDE;
+      while (i < count && timeOf(i) < time)
+         i++;
+      return i;
+   }
+
+   public synchronized double getSpeed() {
+      return speed;
+   }
+
+   public synchronized void setSpeed(double s) {
+      rebase();
+      speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, s));
+      notifyAll();
+   }
+
+   /*
+    * Move playback to time (ms from the start of the recording): the next
+    * event is due after its time minus time, at the speed
+    */
+   public synchronized void seek(long time) {
+      time = Math.max(0, time);
+      position = indexOf(time);
+      posTime = time;
+      posWall = System.currentTimeMillis();
+      seeked = true;
+      notifyAll();
+   }
+
+   /*
+    * Make the current time the reference of the pacing
+    */
+   private void rebase() {
+      long now = System.currentTimeMillis();
+      posTime += (long)((now - posWall) * speed);
+      posWall = now;
+   }
+
+   /*
+    * Time to wait, in ms, before the event at position is due
+    */
+   private long waitTime() {
+      long due = posWall + (long)((timeOf(position) - posTime) / speed);
+      return due - System.currentTimeMillis();
+   }
+
+   /*
+    * Make the current position due now: the pacing of play and advance
+    * starts from it
+    */
+   public synchronized void start() {
+      posTime = position < count ? timeOf(position) : 0;
+      posWall = System.currentTimeMillis();
+   }
+
+   /*
+    * Deliver the pending seek and all the events due, then the frame, and
+    * return the time to wait in ms before the next event is due, or -1 at
+    * the end of the recording. Never blocks: used by play, and to run many
+    * replays on a few threads (see ReplayScheduler).
+    */
+   public long advance() {
+      while (true) {
+         InputEvent e = null;
+         int seekTo = -1;
+         synchronized (this) {
+            if (seeked) {
+               seeked = false;
+               seekTo = position;
+            } else if (position < count && waitTime() <= 0)
+               e = getEvent(position++);
+         }
+         // The listener is called without holding the lock, so seek and
+         // setSpeed never wait for the painting of a frame
+         if (seekTo >= 0)
+            listener.replaySeek(seekTo);
+         else if (e != null)
+            listener.replayEvent(e);
+         else
+            break;
+      }
+      listener.replayFrame();
+      synchronized (this) {
+         if (seeked)
+            return 0;
+         return position < count ? Math.max(0, waitTime()) : -1;
+      }
+   }
+
+   /*
+    * Play from the current position until the end of the recording or
+    * until the calling thread is interrupted.
+    */
+   public void play() {
+      start();
+      while (!Thread.currentThread().isInterrupted()) {
+         long wait = advance();
+         if (wait < 0)
+            break;
+         synchronized (this) {
+            // seek and setSpeed wake the thread up
+            if (wait > 0 && !seeked) {
+               try {
+                  wait(wait);
+               } catch (InterruptedException ex) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,141 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs many replays at once, each bound to its own record file and
+ * DrawingPanel, on a small pool of threads.
+ *
+ * A session never sleeps on a thread: it delivers the events due with
+ * ReplayEngine.advance, then is scheduled again for the time the next
+ * recorded event is due. Hundreds of sessions only need the threads of
+ * the pool (one per core by default), each busy only while events are
+ * delivered.
+ *
+ * (Virtual threads would allow a thread per session blocking in
+ * ReplayEngine.play, but they need Java 21, and a virtual thread waiting
+ * on the engine's monitor would hold on to its carrier thread anyway.)
+ */
+public class ReplayScheduler {
+
+   private final ScheduledThreadPoolExecutor executor;
+   private final AtomicInteger active = new AtomicInteger();
+
+   public ReplayScheduler() {
+      this(Runtime.getRuntime().availableProcessors());
+   }
+
+   public ReplayScheduler(int threads) {
+      final AtomicInteger n = new AtomicInteger();
+      executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Replay " + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      executor.setRemoveOnCancelPolicy(true);
+   }
+
+   /*
+    * A replay of a file on a panel
+    */
+   public class Session implements Runnable {
+      private final DrawingPanel panel;
+      private final ReplayEngine engine;
+      private ScheduledFuture<?> next;
+      private boolean done;
+
+      Session(DrawingPanel panel, ReplayEngine engine) {
+         this.panel = panel;
+         this.engine = engine;
+      }
+
+      public DrawingPanel getPanel() {
+         return panel;
+      }
+
+      public ReplayEngine getEngine() {
+         return engine;
+      }
+
+      public synchronized void run() {
+         if (done)
+            return;
+         long wait = engine.advance();
+         if (wait < 0)
+            finish();
+         else
+            next = executor.schedule(this, wait, TimeUnit.MILLISECONDS);
+      }
+
+      private void finish() {
+         done = true;
+         active.decrementAndGet();
+      }
+
+      /*
+       * Move to time (ms from the start of the recording) right away
+       */
+      public synchronized void seek(long time) {
+         engine.seek(time);
+         reschedule();
+      }
+
+      public synchronized void setSpeed(double speed) {
+         engine.setSpeed(speed);
+         reschedule();
+      }
+
+      private void reschedule() {
+         if (done)
+            return;
+         if (next != null)
+            next.cancel(false);
+         next = executor.schedule(this, 0, TimeUnit.MILLISECONDS);
+      }
+
+      public synchronized void stop() {
+         if (done)
+            return;
+         if (next != null)
+            next.cancel(false);
+         finish();
+      }
+
+      public synchronized boolean isDone() {
+         return done;
+      }
+   }
+
+   /*
+    * Start replaying file on panel (to be called on the event dispatch
+    * thread, like DrawingPanel.play); null if the file can not be opened
+    */
+   public Session play(String file, DrawingPanel panel) {
+      ReplayEngine engine = panel.openReplay(file);
+      if (engine == null)
+         return null;
+      Session s = new Session(panel, engine);
+      active.incrementAndGet();
+      engine.start();
+      synchronized (s) {
+         s.next = executor.schedule(s, 0, TimeUnit.MILLISECONDS);
+      }
+      return s;
+   }
+
+   /*
+    * Number of sessions not finished nor stopped
+    */
+   public int getActiveCount() {
+      return active.get();
+   }
+
+   public int getThreadCount() {
+      return executor.getPoolSize();
+   }
+
+   public void shutdown() {
+      executor.shutdownNow();
+   }
+}
@@ -0,0 +1,50 @@
+import java.awt.*;
+import javax.swing.*;
+
+/*
+ * Side by side review of recorded sessions:
+ *
+ *    java ReplayWall <events file>...
+ *
+ * Every file is replayed on its own DrawingPanel tile, all at the same
+ * time, by one ReplayScheduler. The wall scrolls when the tiles do not fit
+ * on the screen.
+ */
+public class ReplayWall extends JFrame {
+
+   private static final long serialVersionUID = 1L;
+
+   private ReplayScheduler scheduler = new ReplayScheduler();
+
+   public ReplayWall(String[] files) {
+      setTitle("Replay wall - " + files.length + " sessions");
+      int columns = (int)Math.ceil(Math.sqrt(files.length));
+      JPanel wall = new JPanel(new GridLayout(0, columns, 4, 4));
+      DrawingPanel[] tiles = new DrawingPanel[files.length];
+      for (int i = 0; i < files.length; i++) {
+         tiles[i] = new DrawingPanel();
+         tiles[i].setPreferredSize(new Dimension(Digger.FRAME_WIDTH, Digger.FRAME_HEIGHT));
+         tiles[i].setSize(Digger.FRAME_WIDTH, Digger.FRAME_HEIGHT);
+         tiles[i].setToolTipText(files[i]);
+         wall.add(tiles[i]);
+      }
+      getContentPane().add(new JScrollPane(wall), BorderLayout.CENTER);
+      for (int i = 0; i < files.length; i++)
+         scheduler.play(files[i], tiles[i]);
+   }
+
+   public static void main(final String[] args) {
+      if (args.length == 0) {
+         System.out.println("Usage: java ReplayWall <events file>...");
+         return;
+      }
+      SwingUtilities.invokeLater(new Runnable() {
+         public void run() {
+            ReplayWall frame = new ReplayWall(args);
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.setSize(Digger.FRAME_WIDTH, Digger.FRAME_HEIGHT);
+            frame.setVisible(true);
+         }
+      });
+   }
+}
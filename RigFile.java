@@ -0,0 +1,484 @@
+import java.awt.*;
+import java.awt.geom.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/*
+ * File format for rigs (hierarchies of shapes, e.g. the digger) and for
+ * fleets of rig instances, in a human-readable text form and a compact
+ * binary form.
+ *
+ * Text form: one record per line, fields separated by blanks, and
+ * comments from # to the end of the line:
+ *
+ *    #    name      type sides width height color  parent     x    y angle
+ *    rig digger
+ *    node root      -1   5     200   100    ffff00 -          0    0     0
+ *    node base      -1   4     100   40     ffff00 root       75   25  -90
+ *    ...
+ *    end
+ *    #        rig    x    y    scale
+ *    instance digger 300  400  0.3
+ *
+ * A node is a MyRectangle: its objectType (the selection code of
+ * DrawingPanel), its sides (see Geometry.makeShape), its width and height,
+ * its RGB color, and its transform relative to its parent (a previous
+ * node of the rig, - for the root): a translation by (x, y) then a
+ * rotation by angle degrees (negative upward, since y points down).
+ * Nodes are listed depth first, like SceneStore keeps them.
+ * An instance places a copy of a rig defined before with a translation
+ * by (x, y) then a scale, as the DisplayList entries of a fleet.
+ *
+ * Binary form, big endian (the DataOutputStream order):
+ *    header    int    MAGIC ("DGRG")
+ *              int    VERSION
+ *    rig       byte   RIG
+ *              UTF    name
+ *              short  number of nodes, then for each node:
+ *                     UTF name, byte type, byte sides, short width,
+ *                     short height, int color, short parent (index of
+ *                     the node in the rig, -1 for the root), float x,
+ *                     float y, float angle
+ *    instance  byte   INSTANCE
+ *              short  rig (index of its rig record in the file)
+ *              float  x, float y, float scale
+ *
+ * Numbers are floats in both forms, so that both give the same scene.
+ *
+ * Files are parsed as a stream of records, each handed to a Handler as
+ * it is read. load() adds each instance to a SceneStore as it is read:
+ * the geometry of a rig is built for its first instance only, the others
+ * are copies of it sharing its geometry.
+ *
+ * Files are converted from one form to the other with:
+ *    java RigFile <file> <text file>.rig
+ *    java RigFile <file> <binary file>.rigb
+ */
+public class RigFile {
+
+   public static final int MAGIC = 0x44475247;
+   public static final int VERSION = 1;
+   public static final byte RIG = 1;
+   public static final byte INSTANCE = 2;
+
+   private static final int MAX_FIELDS = 12;
+
+   /*
+    * The nodes of a rig, as read from a file
+    */
+   public static class Definition {
+      private final String name;
+      private int count;
+      private String[] names = new String[8];
+      private int[] type = new int[8];
+      private int[] sides = new int[8];
+      private int[] width = new int[8];
+      private int[] height = new int[8];
+      private int[] color = new int[8];
+      private int[] parent = new int[8];
+      private float[] x = new float[8];
+      private float[] y = new float[8];
+      private float[] angle = new float[8];
+      // Shared by the shapes built, like their Geometry; made with the
+      // nodes, so that build only reads the definition
+      private Color[] colors = new Color[8];
+
+      public Definition(String name) {
+         this.name = name;
+      }
+
+      public String getName() {
+         return name;
+      }
+
+      public int getNodeCount() {
+         return count;
+      }
+
+      /*
+       * Append a node, child of node parent (-1 for the root)
+       */
+      public void addNode(String node, int type, int sides, int width, int height, int color,
+            int parent, float x, float y, float angle) {
+         if (count == names.length) {
+            int n = 2 * count;
+            names = Arrays.copyOf(names, n);
+            this.type = Arrays.copyOf(this.type, n);
+            this.sides = Arrays.copyOf(this.sides, n);
+            this.width = Arrays.copyOf(this.width, n);
+            this.height = Arrays.copyOf(this.height, n);
+            this.color = Arrays.copyOf(this.color, n);
+            this.parent = Arrays.copyOf(this.parent, n);
+            this.x = Arrays.copyOf(this.x, n);
+            this.y = Arrays.copyOf(this.y, n);
+            this.angle = Arrays.copyOf(this.angle, n);
+            colors = Arrays.copyOf(colors, n);
+         }
+         int i = count++;
+         names[i] = node;
+         this.type[i] = type;
+         this.sides[i] = sides;
+         this.width[i] = width;
+         this.height[i] = height;
+         this.color[i] = color;
+         colors[i] = new Color(color);
+         this.parent[i] = parent;
+         this.x[i] = x;
+         this.y[i] = y;
+         this.angle[i] = angle;
+      }
+
+      /*
+       * Index of the node named node, -1 if none
+       */
+      public int indexOf(String node) {
+         for (int i = 0; i < count; i++)
+            if (names[i].equals(node))
+               return i;
+         return -1;
+      }
+
+      /*
+       * Build the MyRectangle hierarchy of the rig and return its root;
+       * only reads the definition, so a complete one (e.g. the digger of
+       * DrawingPanel) can be built by several threads at once
+       */
+      public MyRectangle build() {
+         MyRectangle[] shapes = new MyRectangle[count];
+         for (int i = 0; i < count; i++) {
+            AffineTransform t = AffineTransform.getTranslateInstance(x[i], y[i]);
+            if (angle[i] != 0)
+               t.rotate(angle[i] / 180.0 * Math.PI);
+            MyRectangle p = parent[i] < 0 ? null : shapes[parent[i]];
+            shapes[i] = new MyRectangle(t, width[i], height[i], colors[i], p, sides[i], type[i]);
+            if (p != null)
+               p.addChild(shapes[i]);
+         }
+         return shapes[0];
+      }
+   }
+
+   /*
+    * Receives the records of a file, in order
+    */
+   public interface Handler {
+      void rig(Definition rig) throws IOException;
+      void instance(Definition rig, float x, float y, float scale) throws IOException;
+   }
+
+   /*
+    * Receives the rigs loaded in a SceneStore and their placement
+    */
+   public interface Listener {
+      void instance(SceneStore.Rig rig, AffineTransform placement);
+   }
+
+   /*
+    * Parse file, in either form
+    */
+   public static void parse(String file, Handler h) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+         parse(in, file, h);
+      } finally {
+         in.close();
+      }
+   }
+
+   /*
+    * Parse a stream in either form; name is used in the error messages
+    */
+   public static void parse(InputStream in, String name, Handler h) throws IOException {
+      BufferedInputStream buf = new BufferedInputStream(in, 1 << 16);
+      buf.mark(4);
+      DataInputStream data = new DataInputStream(buf);
+      boolean binary;
+      try {
+         binary = data.readInt() == MAGIC;
+      } catch (EOFException e) {
+         binary = false;
+      }
+      buf.reset();
+      if (binary)
+         parseBinary(data, name, h);
+      else
+         parseText(new BufferedReader(new InputStreamReader(buf, "UTF-8")), name, h);
+   }
+
+   /*
+    * The first rig of a text form
+    */
+   public static Definition parseDefinition(String text) {
+      final Definition[] first = new Definition[1];
+      try {
+         parseText(new BufferedReader(new StringReader(text)), "rig", new Handler() {
+            public void rig(Definition rig) {
+               if (first[0] == null)
+                  first[0] = rig;
+            }
+            public void instance(Definition rig, float x, float y, float scale) {
+            }
+         });
+      } catch (IOException e) {
+         throw new IllegalArgumentException(e.getMessage(), e);
+      }
+      if (first[0] == null)
+         throw new IllegalArgumentException("No rig in " + text);
+      return first[0];
+   }
+
+   /*
+    * Add the instances of file to store, return their number
+    */
+   public static int load(String file, SceneStore store, Listener l) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+         return load(in, file, store, l);
+      } finally {
+         in.close();
+      }
+   }
+
+   public static int load(InputStream in, String name, final SceneStore store, final Listener l)
+         throws IOException {
+      final IdentityHashMap<Definition, SceneStore.Rig> built = new IdentityHashMap<Definition, SceneStore.Rig>();
+      final int[] instances = new int[1];
+      parse(in, name, new Handler() {
+         public void rig(Definition rig) {
+         }
+         public void instance(Definition rig, float x, float y, float scale) {
+            SceneStore.Rig first = built.get(rig);
+            SceneStore.Rig r;
+            if (first == null) {
+               r = store.add(rig.build());
+               built.put(rig, r);
+            } else
+               r = store.add(first);
+            AffineTransform t = AffineTransform.getTranslateInstance(x, y);
+            t.scale(scale, scale);
+            l.instance(r, t);
+            instances[0]++;
+         }
+      });
+      return instances[0];
+   }
+
+   private static void parseText(BufferedReader in, String name, Handler h) throws IOException {
+      ArrayList<Definition> rigs = new ArrayList<Definition>();
+      Definition rig = null;
+      String[] f = new String[MAX_FIELDS];
+      String line;
+      int number = 0;
+      while ((line = in.readLine()) != null) {
+         number++;
+         int n = split(line, f);
+         if (n == 0)
+            continue;
+         try {
+            if (f[0].equals("rig") && n == 2 && rig == null) {
+               rig = new Definition(f[1]);
+            } else if (f[0].equals("node") && n == 11 && rig != null) {
+               int p = -1;
+               if (!f[7].equals("-") && (p = rig.indexOf(f[7])) < 0)
+                  throw new IOException(name + ":" + number + ": unknown parent " + f[7]);
+               if ((p < 0) != (rig.getNodeCount() == 0))
+                  throw new IOException(name + ":" + number + ": a rig has one root, its first node");
+               rig.addNode(f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+                     Integer.parseInt(f[4]), Integer.parseInt(f[5]), Integer.parseInt(f[6], 16),
+                     p, Float.parseFloat(f[8]), Float.parseFloat(f[9]), Float.parseFloat(f[10]));
+            } else if (f[0].equals("end") && n == 1 && rig != null) {
+               if (rig.getNodeCount() == 0)
+                  throw new IOException(name + ":" + number + ": rig " + rig.getName() + " has no node");
+               rigs.add(rig);
+               h.rig(rig);
+               rig = null;
+            } else if (f[0].equals("instance") && n == 5 && rig == null) {
+               Definition d = null;
+               for (int i = rigs.size() - 1; i >= 0 && d == null; i--)
+                  if (rigs.get(i).getName().equals(f[1]))
+                     d = rigs.get(i);
+               if (d == null)
+                  throw new IOException(name + ":" + number + ": unknown rig " + f[1]);
+               h.instance(d, Float.parseFloat(f[2]), Float.parseFloat(f[3]), Float.parseFloat(f[4]));
+            } else
+               throw new IOException(name + ":" + number + ": invalid record: " + line.trim());
+         } catch (NumberFormatException e) {
+            throw new IOException(name + ":" + number + ": invalid number in: " + line.trim());
+         }
+      }
+      if (rig != null)
+         throw new IOException(name + ": rig " + rig.getName() + " has no end");
+   }
+
+   /*
+    * Split line in blank separated fields, up to a #, into f; return
+    * their number (MAX_FIELDS + 1 if there are more)
+    */
+   private static int split(String line, String[] f) {
+      int n = 0, i = 0, length = line.length();
+      while (true) {
+         while (i < length && line.charAt(i) <= ' ')
+            i++;
+         if (i == length || line.charAt(i) == '#')
+            return n;
+         int start = i;
+         while (i < length && line.charAt(i) > ' ' && line.charAt(i) != '#')
+            i++;
+         if (n == f.length)
+            return n + 1;
+         f[n++] = line.substring(start, i);
+      }
+   }
+
+   private static void parseBinary(DataInputStream in, String name, Handler h) throws IOException {
+      in.readInt();
+      int version = in.readInt();
+      if (version != VERSION)
+         throw new IOException(name + ": unsupported rig file version " + version);
+      ArrayList<Definition> rigs = new ArrayList<Definition>();
+      int kind;
+      while ((kind = in.read()) >= 0) {
+         if (kind == RIG) {
+            Definition rig = new Definition(in.readUTF());
+            int count = in.readShort();
+            for (int i = 0; i < count; i++) {
+               String node = in.readUTF();
+               int type = in.readByte(), sides = in.readByte();
+               int width = in.readShort(), height = in.readShort();
+               int color = in.readInt(), parent = in.readShort();
+               if (parent >= i || (parent < 0) != (i == 0))
+                  throw new IOException(name + ": invalid parent of node " + node);
+               rig.addNode(node, type, sides, width, height, color, parent,
+                     in.readFloat(), in.readFloat(), in.readFloat());
+            }
+            if (count <= 0)
+               throw new IOException(name + ": rig " + rig.getName() + " has no node");
+            rigs.add(rig);
+            h.rig(rig);
+         } else if (kind == INSTANCE) {
+            int r = in.readShort();
+            if (r < 0 || r >= rigs.size())
+               throw new IOException(name + ": unknown rig " + r);
+            h.instance(rigs.get(r), in.readFloat(), in.readFloat(), in.readFloat());
+         } else
+            throw new IOException(name + ": invalid record " + kind);
+      }
+   }
+
+   /*
+    * Writes the records it is handed in the text form
+    */
+   public static class TextWriter implements Handler, Closeable {
+      private final PrintWriter out;
+
+      public TextWriter(String file) throws IOException {
+         this(new FileOutputStream(file));
+      }
+
+      public TextWriter(OutputStream out) throws IOException {
+         this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 1 << 16));
+      }
+
+      public void rig(Definition rig) {
+         out.println("#    name type sides width height color parent x y angle");
+         out.println("rig " + rig.name);
+         for (int i = 0; i < rig.count; i++)
+            out.println("node " + rig.names[i] + " " + rig.type[i] + " " + rig.sides[i] + " "
+                  + rig.width[i] + " " + rig.height[i] + " "
+                  + String.format("%06x", rig.color[i] & 0xFFFFFF) + " "
+                  + (rig.parent[i] < 0 ? "-" : rig.names[rig.parent[i]]) + " "
+                  + rig.x[i] + " " + rig.y[i] + " " + rig.angle[i]);
+         out.println("end");
+      }
+
+      public void instance(Definition rig, float x, float y, float scale) {
+         out.println("instance " + rig.name + " " + x + " " + y + " " + scale);
+      }
+
+      public void close() throws IOException {
+         out.close();
+         if (out.checkError())
+            throw new IOException("Unable to write rig file");
+      }
+   }
+
+   /*
+    * Writes the records it is handed in the binary form
+    */
+   public static class BinaryWriter implements Handler, Closeable {
+      private final DataOutputStream out;
+      private final IdentityHashMap<Definition, Integer> rigs = new IdentityHashMap<Definition, Integer>();
+
+      public BinaryWriter(String file) throws IOException {
+         this(new FileOutputStream(file));
+      }
+
+      public BinaryWriter(OutputStream out) throws IOException {
+         this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+         this.out.writeInt(MAGIC);
+         this.out.writeInt(VERSION);
+      }
+
+      public void rig(Definition rig) throws IOException {
+         rigs.put(rig, rigs.size());
+         out.writeByte(RIG);
+         out.writeUTF(rig.name);
+         out.writeShort(rig.count);
+         for (int i = 0; i < rig.count; i++) {
+            out.writeUTF(rig.names[i]);
+            out.writeByte(rig.type[i]);
+            out.writeByte(rig.sides[i]);
+            out.writeShort(rig.width[i]);
+            out.writeShort(rig.height[i]);
+            out.writeInt(rig.color[i]);
+            out.writeShort(rig.parent[i]);
+            out.writeFloat(rig.x[i]);
+            out.writeFloat(rig.y[i]);
+            out.writeFloat(rig.angle[i]);
+         }
+      }
+
+      public void instance(Definition rig, float x, float y, float scale) throws IOException {
+         Integer r = rigs.get(rig);
+         if (r == null) {
+            rig(rig);
+            r = rigs.get(rig);
+         }
+         out.writeByte(INSTANCE);
+         out.writeShort(r);
+         out.writeFloat(x);
+         out.writeFloat(y);
+         out.writeFloat(scale);
+      }
+
+      public void close() throws IOException {
+         out.close();
+      }
+   }
+
+   /*
+    * Convert file to the form given by the extension of the new file
+    */
+   public static void convert(String file, String newFile) throws IOException {
+      Handler out = newFile.endsWith(".rigb") ? new BinaryWriter(newFile) : new TextWriter(newFile);
+      try {
+         parse(file, out);
+      } finally {
+         ((Closeable)out).close();
+      }
+   }
+
+   public static void main(String[] args) {
+      if (args.length != 2) {
+         System.out.println("Usage: java RigFile <rig file> <new file>.rig|.rigb");
+         return;
+      }
+      try {
+         convert(args[0], args[1]);
+      } catch (IOException e) {
+         System.out.println("Unable to convert " + args[0] + ": " + e.getMessage());
+      }
+   }
+}
@@ -0,0 +1,386 @@
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/*
+ * Scene storage for large fleets of rigs (e.g. diggers), as an
+ * alternative to one MyRectangle object per shape.
+ *
+ * Every node of every rig is an index in flat arrays:
+ *    local     6 doubles, its transform relative to its parent, in the
+ *              order of AffineTransform.getMatrix (m00 m10 m01 m11 m02 m12)
+ *    world     6 doubles, the composition of the local transforms from
+ *              the root of its rig down to the node
+ *    parent    index of the parent node, -1 for the root of a rig
+ *    type      objectType of the shape (ROOT, BASE... of DrawingPanel)
+ *    color     index of its fill color in the palette
+ *    geometry  index of its Geometry in the table of the distinct ones
+ *    rest      6 doubles, the local transform of a joint before it turned
+ *    turn      the JOINT_STEPs the joint turned since rest, so that its
+ *              limits hold across the simulations of the fleet
+ *
+ * Nodes are in topological order: a rig is a contiguous range of nodes in
+ * depth first order, so a parent always comes before its children and
+ * all the world transforms are computed in one linear pass. The pass
+ * starts at the first node which local transform changed.
+ *
+ * A rig is imported from a MyRectangle hierarchy with add(), or copied
+ * from a rig of the store, sharing its geometry (e.g. the instances of a
+ * RigFile). The Rig returned is the Model painted and picked by the
+ * DisplayList.
+ *
+ * Only the fleet of DrawingPanel is stored here. The digger the user
+ * drives stays a MyRectangle hierarchy: its selection, drags, collision
+ * with the bottle, recording and replay all work on MyRectangle, and a
+ * single rig gains nothing from the flat arrays.
+ */
+public class SceneStore {
+
+   public static final int NONE = -1;
+
+   private static final int INITIAL_CAPACITY = 64;
+
+   private int size;
+   private double[] local = new double[6 * INITIAL_CAPACITY];
+   private double[] world = new double[6 * INITIAL_CAPACITY];
+   private int[] parent = new int[INITIAL_CAPACITY];
+   private int[] type = new int[INITIAL_CAPACITY];
+   private int[] color = new int[INITIAL_CAPACITY];
+   private int[] geometry = new int[INITIAL_CAPACITY];
+   private double[] rest = new double[6 * INITIAL_CAPACITY];
+   private int[] turn = new int[INITIAL_CAPACITY];
+   // The index of each node picked so far, boxed once
+   private Integer[] nodeIndex = new Integer[INITIAL_CAPACITY];
+   // First node which world transform is stale, size if none
+   private int dirtyFrom;
+
+   private ArrayList<Color> palette = new ArrayList<Color>();
+   // The distinct geometries of the nodes, shared like the MyRectangle
+   // objects they come from share them
+   private ArrayList<Geometry> geometries = new ArrayList<Geometry>();
+   private IdentityHashMap<Geometry, Integer> geometryIndex = new IdentityHashMap<Geometry, Integer>();
+   // What the geometries fill and stroke, and the debug anchor, as paths
+   // of this store painted without allocating
+   private ArrayList<PaintPath> fills = new ArrayList<PaintPath>();
+   private ArrayList<PaintPath> lines = new ArrayList<PaintPath>();
+   private PaintPath anchor = new PaintPath(MyRectangle.anchor);
+
+   // Scratch objects of paint and pick
+   private AffineTransform nodeAT = new AffineTransform();
+   private AffineTransform deviceAT = new AffineTransform();
+   private Point2D.Double pickPoint = new Point2D.Double();
+   private double[] corners = new double[8];
+
+   /*
+    * A rig of the store: nodes first to first+count-1
+    */
+   public class Rig implements Model {
+      private final int first;
+      private final int count;
+
+      Rig(int first, int count) {
+         this.first = first;
+         this.count = count;
+      }
+
+      public int getFirst() {
+         return first;
+      }
+
+      public int getNodeCount() {
+         return count;
+      }
+
+      public void paint(Graphics2D g2, AffineTransform rootAT) {
+         SceneStore.this.paint(g2, rootAT, first, first + count);
+      }
+
+      public Rectangle2D getWorldBounds() {
+         return SceneStore.this.getWorldBounds(first, first + count);
+      }
+
+      /*
+       * The index (an Integer) of the node under point, null if none
+       */
+      public Object selectedShape(Point2D point) {
+         int i = pick(point, first, first + count);
+         return i == NONE ? null : nodeIndex(i);
+      }
+   }
+
+   public int size() {
+      return size;
+   }
+
+   /*
+    * Append the hierarchy of root as a new rig
+    */
+   public Rig add(MyRectangle root) {
+      int first = size;
+      add(root, NONE);
+      return new Rig(first, size - first);
+   }
+
+   /*
+    * Append a copy of rig, sharing its geometry, as a new rig
+    */
+   public Rig add(Rig rig) {
+      int first = size, from = rig.first, n = rig.count;
+      size += n;
+      ensureCapacity(size);
+      System.arraycopy(local, 6 * from, local, 6 * first, 6 * n);
+      System.arraycopy(type, from, type, first, n);
+      System.arraycopy(color, from, color, first, n);
+      System.arraycopy(geometry, from, geometry, first, n);
+      System.arraycopy(rest, 6 * from, rest, 6 * first, 6 * n);
+      System.arraycopy(turn, from, turn, first, n);
+      for (int i = 0; i < n; i++)
+         parent[first + i] = parent[from + i] == NONE ? NONE : parent[from + i] - from + first;
+      dirtyFrom = Math.min(dirtyFrom, first);
+      return new Rig(first, n);
+   }
+
+   private void add(MyRectangle r, int p) {
+      int i = size++;
+      ensureCapacity(size);
+      r.getTrans().getMatrix(corners);
+      System.arraycopy(corners, 0, local, 6 * i, 6);
+      System.arraycopy(corners, 0, rest, 6 * i, 6);
+      turn[i] = 0;
+      parent[i] = p;
+      type[i] = r.objectType;
+      color[i] = colorIndex(r.getFillColor());
+      geometry[i] = geometryIndex(r.getGeometry());
+      dirtyFrom = Math.min(dirtyFrom, i);
+      for (int c = 0; c < r.getChildCount(); c++)
+         add(r.getChild(c), i);
+   }
+
+   private void ensureCapacity(int n) {
+      if (n <= parent.length)
+         return;
+      int capacity = Math.max(n, 2 * parent.length);
+      local = Arrays.copyOf(local, 6 * capacity);
+      world = Arrays.copyOf(world, 6 * capacity);
+      parent = Arrays.copyOf(parent, capacity);
+      type = Arrays.copyOf(type, capacity);
+      color = Arrays.copyOf(color, capacity);
+      geometry = Arrays.copyOf(geometry, capacity);
+      rest = Arrays.copyOf(rest, 6 * capacity);
+      turn = Arrays.copyOf(turn, capacity);
+      nodeIndex = Arrays.copyOf(nodeIndex, capacity);
+   }
+
+   private Integer nodeIndex(int node) {
+      if (nodeIndex[node] == null)
+         nodeIndex[node] = Integer.valueOf(node);
+      return nodeIndex[node];
+   }
+
+   private int geometryIndex(Geometry g) {
+      Integer i = geometryIndex.get(g);
+      if (i == null) {
+         i = Integer.valueOf(geometries.size());
+         geometries.add(g);
+         fills.add(new PaintPath(g.fill));
+         lines.add(new PaintPath(g.line));
+         geometryIndex.put(g, i);
+      }
+      return i.intValue();
+   }
+
+   private int colorIndex(Color c) {
+      int i = palette.indexOf(c);
+      if (i < 0) {
+         i = palette.size();
+         palette.add(c);
+      }
+      return i;
+   }
+
+   public int getParent(int node) {
+      return parent[node];
+   }
+
+   public int getType(int node) {
+      return type[node];
+   }
+
+   /*
+    * Body of node, used for picking, in its local coordinate system
+    */
+   Polygon getBody(int node) {
+      return geometries.get(geometry[node]).body;
+   }
+
+   /*
+    * Exact geometry of what node fills, in its local coordinate system
+    */
+   Collider getCollider(int node) {
+      return geometries.get(geometry[node]).collider;
+   }
+
+   /*
+    * Bounds of what node paints, in its local coordinate system
+    */
+   Rectangle2D getLocalBounds(int node) {
+      return geometries.get(geometry[node]).bounds;
+   }
+
+   /*
+    * Replace the local and world transforms of the first nodes (6
+    * coefficients per node, as many as the arrays hold), e.g. by the ones
+    * computed by a FleetSimulation
+    */
+   public void setTransforms(double[] newLocal, double[] newWorld) {
+      int n = Math.min(newLocal.length, 6 * size);
+      updateWorld();
+      System.arraycopy(newLocal, 0, local, 0, n);
+      System.arraycopy(newWorld, 0, world, 0, n);
+   }
+
+   /*
+    * Change the local transform of node, which becomes its rest transform
+    * (turn 0); world transforms are updated lazily
+    */
+   public void setLocal(int node, AffineTransform t) {
+      t.getMatrix(corners);
+      System.arraycopy(corners, 0, local, 6 * node, 6);
+      System.arraycopy(corners, 0, rest, 6 * node, 6);
+      turn[node] = 0;
+      dirtyFrom = Math.min(dirtyFrom, node);
+   }
+
+   /*
+    * The local transform of node before its joint turned
+    */
+   public void getRest(int node, AffineTransform dst) {
+      int o = 6 * node;
+      dst.setTransform(rest[o], rest[o + 1], rest[o + 2], rest[o + 3], rest[o + 4], rest[o + 5]);
+   }
+
+   /*
+    * Steps the joint of node turned since its rest transform
+    */
+   public int getTurn(int node) {
+      return turn[node];
+   }
+
+   /*
+    * Record the steps the joint of node turned, e.g. by a FleetSimulation
+    * which set its local transform with setTransforms
+    */
+   public void setTurn(int node, int steps) {
+      turn[node] = steps;
+   }
+
+   public void getLocal(int node, AffineTransform dst) {
+      int o = 6 * node;
+      dst.setTransform(local[o], local[o + 1], local[o + 2], local[o + 3], local[o + 4], local[o + 5]);
+   }
+
+   public void getWorld(int node, AffineTransform dst) {
+      updateWorld();
+      int o = 6 * node;
+      dst.setTransform(world[o], world[o + 1], world[o + 2], world[o + 3], world[o + 4], world[o + 5]);
+   }
+
+   /*
+    * Recompute the stale world transforms, in one pass over the nodes
+    */
+   public void updateWorld() {
+      for (int i = dirtyFrom; i < size; i++) {
+         int o = 6 * i;
+         int p = parent[i];
+         if (p == NONE) {
+            System.arraycopy(local, o, world, o, 6);
+            continue;
+         }
+         int q = 6 * p;
+         double a00 = world[q], a10 = world[q + 1], a01 = world[q + 2];
+         double a11 = world[q + 3], a02 = world[q + 4], a12 = world[q + 5];
+         double b00 = local[o], b10 = local[o + 1], b01 = local[o + 2];
+         double b11 = local[o + 3], b02 = local[o + 4], b12 = local[o + 5];
+         world[o] = a00 * b00 + a01 * b10;
+         world[o + 1] = a10 * b00 + a11 * b10;
+         world[o + 2] = a00 * b01 + a01 * b11;
+         world[o + 3] = a10 * b01 + a11 * b11;
+         world[o + 4] = a00 * b02 + a01 * b12 + a02;
+         world[o + 5] = a10 * b02 + a11 * b12 + a12;
+      }
+      dirtyFrom = size;
+   }
+
+   /*
+    * Paint nodes from to to-1, as MyRectangle.paint does
+    */
+   private void paint(Graphics2D g2, AffineTransform rootAT, int from, int to) {
+      updateWorld();
+      boolean debug = MyRectangle.isDebug();
+      for (int i = from; i < to; i++) {
+         int o = 6 * i;
+         Geometry geo = geometries.get(geometry[i]);
+         nodeAT.setTransform(world[o], world[o + 1], world[o + 2], world[o + 3], world[o + 4], world[o + 5]);
+         deviceAT.setTransform(rootAT);
+         deviceAT.concatenate(nodeAT);
+         g2.setTransform(deviceAT);
+         g2.setColor(palette.get(color[i]));
+         g2.fill(fills.get(geometry[i]));
+         g2.setColor(Color.DARK_GRAY);
+         g2.setStroke(geo.stroke);
+         g2.draw(lines.get(geometry[i]));
+         if (debug) {
+            g2.setColor(Color.ORANGE);
+            g2.fill(anchor);
+         }
+      }
+      g2.setTransform(rootAT);
+   }
+
+   /*
+    * The first node from from to to-1 which body contains point, NONE if
+    * none
+    */
+   private int pick(Point2D point, int from, int to) {
+      updateWorld();
+      double x = point.getX(), y = point.getY();
+      for (int i = from; i < to; i++) {
+         int o = 6 * i;
+         double a00 = world[o], a10 = world[o + 1], a01 = world[o + 2];
+         double a11 = world[o + 3], dx = x - world[o + 4], dy = y - world[o + 5];
+         double det = a00 * a11 - a01 * a10;
+         if (det == 0)
+            continue;
+         pickPoint.x = (a11 * dx - a01 * dy) / det;
+         pickPoint.y = (a00 * dy - a10 * dx) / det;
+         if (geometries.get(geometry[i]).body.contains(pickPoint))
+            return i;
+      }
+      return NONE;
+   }
+
+   private Rectangle2D getWorldBounds(int from, int to) {
+      updateWorld();
+      double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+         Rectangle2D b = geometries.get(geometry[i]).bounds;
+         corners[0] = b.getMinX(); corners[1] = b.getMinY();
+         corners[2] = b.getMaxX(); corners[3] = b.getMinY();
+         corners[4] = b.getMaxX(); corners[5] = b.getMaxY();
+         corners[6] = b.getMinX(); corners[7] = b.getMaxY();
+         int o = 6 * i;
+         nodeAT.setTransform(world[o], world[o + 1], world[o + 2], world[o + 3], world[o + 4], world[o + 5]);
+         nodeAT.transform(corners, 0, corners, 0, 4);
+         for (int c = 0; c < 8; c += 2) {
+            minX = Math.min(minX, corners[c]);
+            maxX = Math.max(maxX, corners[c]);
+            minY = Math.min(minY, corners[c + 1]);
+            maxY = Math.max(maxY, corners[c + 1]);
+         }
+      }
+      return new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
+   }
+}
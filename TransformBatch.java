@@ -0,0 +1,174 @@
+import java.awt.geom.*;
+
+/*
+ * Batch update of the world transforms of many hierarchies (e.g. the
+ * arms of a fleet of diggers), one hierarchy depth at a time.
+ *
+ * The nodes are given by their parent index in topological order, as in
+ * a SceneStore, and stored here by depth: all the roots, then all the
+ * nodes at depth 1, and so on. Each of the six coefficients of the
+ * transforms (m00 m10 m01 m11 m02 m12) has its own array, so composing
+ * every node of a depth with its parent is six multiply-add loops over
+ * contiguous arrays, without dependencies between iterations, which the
+ * JIT compiles to SIMD instructions. The world transforms of the parents
+ * are first gathered next to their children.
+ *
+ * FleetSimulation composes the diggers of each of its chunks with one.
+ *
+ * updateScalar() composes node by node in topological order instead; it
+ * gives the same result and is the reference for update().
+ */
+public class TransformBatch {
+
+   // Coefficient arrays: local transforms, world transforms and the world
+   // transform of the parent of each node, in depth order
+   private double[][] local = new double[6][];
+   private double[][] world = new double[6][];
+   private double[][] parentWorld = new double[6][];
+   // Position in depth order of each node, of its parent (-1 for roots)
+   // and first position of each depth (plus the end)
+   private int[] position;
+   private int[] parent;
+   private int[] depthStart;
+
+   /*
+    * parent[i] is the parent of node i (before i), or a negative value for
+    * a root
+    */
+   public TransformBatch(int[] parents, int n) {
+      int[] depth = new int[n];
+      int depths = 0;
+      for (int i = 0; i < n; i++) {
+         depth[i] = parents[i] < 0 ? 0 : depth[parents[i]] + 1;
+         depths = Math.max(depths, depth[i] + 1);
+      }
+      depthStart = new int[depths + 1];
+      for (int i = 0; i < n; i++)
+         depthStart[depth[i] + 1]++;
+      for (int d = 0; d < depths; d++)
+         depthStart[d + 1] += depthStart[d];
+      int[] next = depthStart.clone();
+      position = new int[n];
+      parent = new int[n];
+      for (int i = 0; i < n; i++)
+         position[i] = next[depth[i]]++;
+      for (int i = 0; i < n; i++)
+         parent[position[i]] = parents[i] < 0 ? -1 : position[parents[i]];
+      for (int c = 0; c < 6; c++) {
+         local[c] = new double[n];
+         world[c] = new double[n];
+         parentWorld[c] = new double[n];
+      }
+      for (int i = 0; i < n; i++) {
+         local[0][i] = local[3][i] = 1;
+      }
+   }
+
+   public int size() {
+      return position.length;
+   }
+
+   public int getDepthCount() {
+      return depthStart.length - 1;
+   }
+
+   public void setLocal(int node, AffineTransform t) {
+      int p = position[node];
+      local[0][p] = t.getScaleX();
+      local[1][p] = t.getShearY();
+      local[2][p] = t.getShearX();
+      local[3][p] = t.getScaleY();
+      local[4][p] = t.getTranslateX();
+      local[5][p] = t.getTranslateY();
+   }
+
+   /*
+    * Set the local transform of node from the 6 coefficients of m at
+    * offset, in the order of AffineTransform.getMatrix
+    */
+   public void setLocal(int node, double[] m, int offset) {
+      int p = position[node];
+      for (int c = 0; c < 6; c++)
+         local[c][p] = m[offset + c];
+   }
+
+   public void getWorld(int node, AffineTransform dst) {
+      int p = position[node];
+      dst.setTransform(world[0][p], world[1][p], world[2][p], world[3][p], world[4][p], world[5][p]);
+   }
+
+   /*
+    * Copy the world transform of node to the 6 coefficients of m at offset
+    */
+   public void getWorld(int node, double[] m, int offset) {
+      int p = position[node];
+      for (int c = 0; c < 6; c++)
+         m[offset + c] = world[c][p];
+   }
+
+   /*
+    * Recompute all the world transforms, depth by depth
+    */
+   public void update() {
+      int roots = depthStart[1];
+      for (int c = 0; c < 6; c++)
+         System.arraycopy(local[c], 0, world[c], 0, roots);
+      for (int d = 1; d < getDepthCount(); d++) {
+         int from = depthStart[d], to = depthStart[d + 1];
+         for (int c = 0; c < 6; c++) {
+            double[] w = world[c], pw = parentWorld[c];
+            for (int i = from; i < to; i++)
+               pw[i] = w[parent[i]];
+         }
+         compose(from, to);
+      }
+   }
+
+   /*
+    * world = parentWorld * local for the nodes from to to-1
+    */
+   private void compose(int from, int to) {
+      double[] a00 = parentWorld[0], a10 = parentWorld[1], a01 = parentWorld[2];
+      double[] a11 = parentWorld[3], a02 = parentWorld[4], a12 = parentWorld[5];
+      double[] b00 = local[0], b10 = local[1], b01 = local[2];
+      double[] b11 = local[3], b02 = local[4], b12 = local[5];
+      double[] r00 = world[0], r10 = world[1], r01 = world[2];
+      double[] r11 = world[3], r02 = world[4], r12 = world[5];
+      for (int i = from; i < to; i++)
+         r00[i] = a00[i] * b00[i] + a01[i] * b10[i];
+      for (int i = from; i < to; i++)
+         r10[i] = a10[i] * b00[i] + a11[i] * b10[i];
+      for (int i = from; i < to; i++)
+         r01[i] = a00[i] * b01[i] + a01[i] * b11[i];
+      for (int i = from; i < to; i++)
+         r11[i] = a10[i] * b01[i] + a11[i] * b11[i];
+      for (int i = from; i < to; i++)
+         r02[i] = a00[i] * b02[i] + a01[i] * b12[i] + a02[i];
+      for (int i = from; i < to; i++)
+         r12[i] = a10[i] * b02[i] + a11[i] * b12[i] + a12[i];
+   }
+
+   /*
+    * Recompute all the world transforms one node after the other
+    */
+   public void updateScalar() {
+      for (int i = 0; i < size(); i++) {
+         int p = parent[i];
+         if (p < 0) {
+            for (int c = 0; c < 6; c++)
+               world[c][i] = local[c][i];
+            continue;
+         }
+         double a00 = world[0][p], a10 = world[1][p], a01 = world[2][p];
+         double a11 = world[3][p], a02 = world[4][p], a12 = world[5][p];
+         double b00 = local[0][i], b10 = local[1][i], b01 = local[2][i];
+         double b11 = local[3][i], b02 = local[4][i], b12 = local[5][i];
+         world[0][i] = a00 * b00 + a01 * b10;
+         world[1][i] = a10 * b00 + a11 * b10;
+         world[2][i] = a00 * b01 + a01 * b11;
+         world[3][i] = a10 * b01 + a11 * b11;
+         world[4][i] = a00 * b02 + a01 * b12 + a02;
+         world[5][i] = a10 * b02 + a11 * b12 + a12;
+      }
+   }
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Lock-free handoff of complete states (e.g. poses) from one producer
+ * thread to one consumer thread, with three preallocated buffers.
+ *
+ * The producer fills the back buffer then publishes it: it becomes the
+ * middle buffer, and the previous middle one becomes the new back buffer.
+ * The consumer takes the middle buffer when a new one was published,
+ * giving back its front buffer. Both swaps are a single atomic exchange,
+ * so neither side ever waits for the other, the consumer always gets the
+ * latest published state, and never one which is being written.
+ * States published but not taken in time are overwritten.
+ */
+public class TripleBuffer<T> {
+
+   // Set in middle when the middle buffer was published and not taken yet
+   private static final int FRESH = 4;
+
+   private final Object[] buffers;
+   private int back = 0;      // producer only
+   private int front = 1;     // consumer only
+   private final AtomicInteger middle = new AtomicInteger(2);
+
+   public TripleBuffer(T a, T b, T c) {
+      buffers = new Object[] {a, b, c};
+   }
+
+   /*
+    * The buffer the producer writes the next state into
+    */
+   @SuppressWarnings("unchecked")
+   public T getBack() {
+      return (T)buffers[back];
+   }
+
+   /*
+    * Make the back buffer the latest state, and give the producer another
+    * back buffer
+    */
+   public void publish() {
+      back = middle.getAndSet(back | FRESH) & ~FRESH;
+   }
+
+   /*
+    * The latest state published, or null if it was already taken; it is
+    * the consumer's until the next call
+    */
+   @SuppressWarnings("unchecked")
+   public T take() {
+      if ((middle.get() & FRESH) == 0)
+         return null;
+      front = middle.getAndSet(front) & ~FRESH;
+      return (T)buffers[front];
+   }
+}
@@ -0,0 +1,408 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.geom.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * Micro-benchmarks of the hot paths of the digger:
+ *    - MyRectangle.paint into an off-screen Graphics2D,
+ *      and DrawingPanel.renderFrame of a whole frame,
+ *    - MyRectangle.selectedShape for hits and misses,
+ *      both for chains of shapes of increasing depth,
+ *    - the update of the world transforms of RIGS rigs after their root
+ *      moved, with MyRectangle objects (AffineTransform.concatenate), with
+ *      a SceneStore and with a TransformBatch (by depth and node by node),
+ *    - a tick of a FleetSimulation of RIGS diggers,
+ *    - the contacts of the parts of a moving digger with DEBRIS pieces of
+ *      debris drifting in a CollisionWorld, at its poses and along its
+ *      moves,
+ *    - DrawingPanel.mouseDragged, per event applied right away and for
+ *      DRAGS_PER_FRAME events integrated then applied at a frame,
+ *    - encoding and decoding of recorded events, with the legacy
+ *      ObjectOutputStream format and with EventLog,
+ *    - loading a RigFile of FLEET diggers into a SceneStore, from the
+ *      text and the binary forms.
+ *
+ *    javac -d target/bench *.java bench/Benchmarks.java
+ *    java -cp target/bench Benchmarks [name filter]
+ *
+ * or mvn -Pbenchmarks verify (see pom.xml). Kept out of the sources of the
+ * application, which do not depend on it.
+ *
+ * Each benchmark is warmed up for WARMUP_MS then measured over
+ * ITERATIONS runs of MEASURE_MS. The time and the bytes allocated per
+ * operation (from the JVM per thread allocation counter) are reported.
+ * Results are consumed by the volatile sink so that the JIT can not
+ * remove the measured code.
+ */
+public class Benchmarks {
+
+   public static final long WARMUP_MS = 1000;
+   public static final long MEASURE_MS = 1000;
+   public static final int ITERATIONS = 5;
+   public static final int[] DEPTHS = {1, 4, 16, 64};
+   public static final int EVENTS = 10000;
+   public static final int RIGS = 1000;
+   public static final int RIG_DEPTH = 5;
+   public static final int DEBRIS = 5000;
+   public static final int DRAGS_PER_FRAME = 200;
+   public static final int FLEET = 10000;
+
+   public static volatile Object sink;
+
+   /*
+    * A measured operation
+    */
+   public interface Op {
+      Object run() throws Exception;
+   }
+
+   private static String filter;
+
+   public static void main(String[] args) throws Exception {
+      if (System.getProperty("java.awt.headless") == null)
+         System.setProperty("java.awt.headless", "true");
+      filter = args.length > 0 ? args[0] : "";
+      MyRectangle.setDebug(false);
+      System.out.printf("%-48s %14s %10s %12s%n", "Benchmark", "ns/op", "error", "B/op");
+
+      BufferedImage img = new BufferedImage(Digger.FRAME_WIDTH, Digger.FRAME_HEIGHT,
+            BufferedImage.TYPE_INT_RGB);
+      final Graphics2D g2 = img.createGraphics();
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      final AffineTransform base = g2.getTransform();
+      for (int depth: DEPTHS) {
+         final MyRectangle root = chain(depth);
+         final MyRectangle leaf = leaf(root);
+         final Point2D hit = leaf.getWorldTransform().transform(new Point2D.Double(5, 5), null);
+         final Point2D miss = new Point2D.Double(-1000, -1000);
+         run("paint depth " + depth, new Op() {
+            public Object run() {
+               root.paint(g2, base);
+               return root;
+            }
+         });
+         run("selectedShape hit depth " + depth, new Op() {
+            public Object run() {
+               return root.selectedShape(hit);
+            }
+         });
+         run("selectedShape miss depth " + depth, new Op() {
+            public Object run() {
+               return root.selectedShape(miss);
+            }
+         });
+      }
+
+      final MyRectangle[] rigs = new MyRectangle[RIGS];
+      final SceneStore store = new SceneStore();
+      final int[] roots = new int[RIGS];
+      for (int i = 0; i < RIGS; i++) {
+         rigs[i] = chain(RIG_DEPTH);
+         roots[i] = store.add(chain(RIG_DEPTH)).getFirst();
+      }
+      final AffineTransform move = AffineTransform.getTranslateInstance(300, 300);
+      run("world transforms MyRectangle " + RIGS + " rigs", new Op() {
+         public Object run() {
+            for (MyRectangle r: rigs) {
+               r.setTrans(move);
+               for (MyRectangle n = r; ; n = n.getChild()) {
+                  n.getWorldTransform();
+                  if (n.getChildCount() == 0)
+                     break;
+               }
+            }
+            return rigs;
+         }
+      });
+      run("world transforms SceneStore " + RIGS + " rigs", new Op() {
+         public Object run() {
+            for (int r: roots)
+               store.setLocal(r, move);
+            store.updateWorld();
+            return store;
+         }
+      });
+
+      int[] parents = new int[store.size()];
+      for (int i = 0; i < parents.length; i++)
+         parents[i] = store.getParent(i);
+      final TransformBatch batch = new TransformBatch(parents, parents.length);
+      for (int i = 0; i < parents.length; i++) {
+         AffineTransform t = new AffineTransform();
+         store.getLocal(i, t);
+         batch.setLocal(i, t);
+      }
+      run("world transforms TransformBatch " + RIGS + " rigs", new Op() {
+         public Object run() {
+            for (int r: roots)
+               batch.setLocal(r, move);
+            batch.update();
+            return batch;
+         }
+      });
+      run("world transforms TransformBatch scalar " + RIGS + " rigs", new Op() {
+         public Object run() {
+            for (int r: roots)
+               batch.setLocal(r, move);
+            batch.updateScalar();
+            return batch;
+         }
+      });
+
+      SceneStore diggers = new SceneStore();
+      ArrayList<SceneStore.Rig> fleetRigs = new ArrayList<SceneStore.Rig>();
+      ArrayList<AffineTransform> placements = new ArrayList<AffineTransform>();
+      for (int i = 0; i < RIGS; i++) {
+         fleetRigs.add(diggers.add(DrawingPanel.makeDigger()));
+         placements.add(AffineTransform.getTranslateInstance(i % 900, 100 + i % 500));
+      }
+      final FleetSimulation simulation = new FleetSimulation(diggers, fleetRigs, placements,
+            new Rectangle(390, 180, 25, 30), new Rectangle(-5, -150, 230, 285), 12, null);
+      run("FleetSimulation tick " + RIGS + " diggers", new Op() {
+         public Object run() {
+            simulation.tick();
+            return simulation;
+         }
+      });
+      simulation.stop();
+
+      final CollisionWorld world = new CollisionWorld();
+      final MyRectangle digger = DrawingPanel.makeDigger();
+      final MyRectangle[] parts = new MyRectangle[RIG_DEPTH];
+      final int[] partBodies = new int[RIG_DEPTH];
+      parts[0] = digger;
+      for (int i = 1; i < RIG_DEPTH; i++)
+         parts[i] = parts[i - 1].getChild();
+      for (int i = 0; i < RIG_DEPTH; i++)
+         partBodies[i] = world.add(parts[i].getCollider(), 1, 2);
+      final double[] debris = new double[6 * DEBRIS];
+      Collider piece = new Collider(new Polygon(new int[] {0, 6, 2}, new int[] {0, 1, 5}, 3));
+      java.util.Random random = new java.util.Random(341);
+      for (int i = 0; i < DEBRIS; i++) {
+         AffineTransform t = AffineTransform.getTranslateInstance(
+               random.nextDouble() * Digger.FRAME_WIDTH, random.nextDouble() * Digger.FRAME_HEIGHT);
+         t.rotate(random.nextDouble() * 2 * Math.PI);
+         double[] m = new double[6];
+         t.getMatrix(m);
+         System.arraycopy(m, 0, debris, 6 * i, 6);
+         world.add(piece, 2, 0);
+      }
+      final AffineTransform partAT = new AffineTransform();
+      for (final boolean swept: new boolean[] {false, true})
+         run("CollisionWorld contacts " + DEBRIS + " debris" + (swept ? " swept" : ""), new Op() {
+            int tick;
+            public Object run() {
+               tick++;
+               for (int i = 0; i < RIG_DEPTH; i++) {
+                  partAT.setToTranslation(200 + tick % 400, 400);
+                  partAT.concatenate(parts[i].getWorldTransform());
+                  if (swept)
+                     world.moveTo(partBodies[i], partAT);
+                  else
+                     world.setTransform(partBodies[i], partAT);
+               }
+               for (int i = 0; i < DEBRIS; i++) {
+                  int o = 6 * i;
+                  debris[o + 4] = (debris[o + 4] + 0.5) % Digger.FRAME_WIDTH;
+                  debris[o + 5] = (debris[o + 5] + ((i + tick) & 1)) % Digger.FRAME_HEIGHT;
+                  world.setTransform(RIG_DEPTH + i, debris, o);
+               }
+               return world.findContacts(null);
+            }
+         });
+
+      final DrawingPanel panel = new DrawingPanel();
+      panel.stopAnimation();
+      panel.setSize(Digger.FRAME_WIDTH, Digger.FRAME_HEIGHT);
+      PrintStream out = System.out;
+      System.setOut(new PrintStream(new ByteArrayOutputStream()));
+      panel.mousePressed(new MouseEvent(panel, MouseEvent.MOUSE_PRESSED, 0, 0, 400, 480, 1, false, 1));
+      System.setOut(out);
+      final MouseEvent[] drags = {
+         new MouseEvent(panel, MouseEvent.MOUSE_DRAGGED, 0, 0, 401, 479, 1, false, 1),
+         new MouseEvent(panel, MouseEvent.MOUSE_DRAGGED, 0, 0, 400, 480, 1, false, 1)
+      };
+      run("renderFrame", new Op() {
+         public Object run() {
+            panel.renderFrame(g2, 0);
+            return panel;
+         }
+      });
+      run("mouseDragged", new Op() {
+         int i;
+         public Object run() {
+            panel.mouseDragged(drags[i++ & 1]);
+            return panel;
+         }
+      });
+      run("mouseDragged, " + DRAGS_PER_FRAME + " per frame", new Op() {
+         int i;
+         public Object run() {
+            for (int j = 0; j < DRAGS_PER_FRAME; j++)
+               panel.replayEvent(drags[i++ & 1]);
+            panel.frame(0);
+            return panel;
+         }
+      });
+
+      final ArrayList<MouseEvent> events = new ArrayList<MouseEvent>();
+      Component source = new Canvas();
+      for (int i = 0; i < EVENTS; i++)
+         events.add(new MouseEvent(source, MouseEvent.MOUSE_DRAGGED, 1000 + 16 * i, 0,
+               i % 900, i % 600, 1, false, MouseEvent.BUTTON1));
+      final byte[] legacy = serialize(events);
+      final ByteBuffer log = ByteBuffer.allocate(EventLog.HEADER_SIZE + EVENTS * EventLog.RECORD_SIZE);
+      encode(events, log);
+      final Component src = source;
+      run("legacy write " + EVENTS + " events", new Op() {
+         public Object run() throws IOException {
+            return serialize(events);
+         }
+      });
+      run("legacy read " + EVENTS + " events", new Op() {
+         public Object run() throws Exception {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(legacy));
+            return in.readObject();
+         }
+      });
+      run("EventLog write " + EVENTS + " events", new Op() {
+         public Object run() {
+            return encode(events, log);
+         }
+      });
+      run("EventLog read " + EVENTS + " events", new Op() {
+         public Object run() throws IOException {
+            log.rewind();
+            long base = EventLog.getHeader(log);
+            Object e = null;
+            for (int i = 0; i < EVENTS; i++)
+               e = EventLog.getEvent(log, src, base);
+            return e;
+         }
+      });
+      System.out.println("legacy size " + legacy.length + " B, EventLog size " + log.capacity() + " B");
+
+      final byte[] rigText = fleetFile(false), rigBinary = fleetFile(true);
+      final RigFile.Listener placed = new RigFile.Listener() {
+         public void instance(SceneStore.Rig rig, AffineTransform placement) {
+            sink = placement;
+         }
+      };
+      run("RigFile load " + FLEET + " instances, text", new Op() {
+         public Object run() throws IOException {
+            SceneStore store = new SceneStore();
+            RigFile.load(new ByteArrayInputStream(rigText), "text", store, placed);
+            return store;
+         }
+      });
+      run("RigFile load " + FLEET + " instances, binary", new Op() {
+         public Object run() throws IOException {
+            SceneStore store = new SceneStore();
+            RigFile.load(new ByteArrayInputStream(rigBinary), "binary", store, placed);
+            return store;
+         }
+      });
+      System.out.println("RigFile size " + rigText.length + " B text, " + rigBinary.length + " B binary");
+      System.exit(0);
+   }
+
+   /*
+    * A RigFile of FLEET diggers at random places
+    */
+   static byte[] fleetFile(boolean binary) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      RigFile.Handler out = binary ? new RigFile.BinaryWriter(bytes) : new RigFile.TextWriter(bytes);
+      RigFile.Definition digger = RigFile.parseDefinition(DrawingPanel.DIGGER_RIG);
+      out.rig(digger);
+      java.util.Random random = new java.util.Random(341);
+      for (int i = 0; i < FLEET; i++)
+         out.instance(digger, random.nextInt(Digger.FRAME_WIDTH), 100 + random.nextInt(500), 0.3f);
+      ((Closeable)out).close();
+      return bytes.toByteArray();
+   }
+
+   /*
+    * A chain of depth shapes, each one attached to the end of its parent
+    * and slightly rotated
+    */
+   static MyRectangle chain(int depth) {
+      MyRectangle root = new MyRectangle(AffineTransform.getTranslateInstance(300, 300),
+            40, 20, Color.YELLOW, null, 4, 0);
+      MyRectangle parent = root;
+      for (int i = 1; i < depth; i++) {
+         AffineTransform t = AffineTransform.getTranslateInstance(30, 0);
+         t.rotate(Math.PI / 64);
+         MyRectangle r = new MyRectangle(t, 40, 20, Color.YELLOW, parent, 4, i);
+         parent.addChild(r);
+         parent = r;
+      }
+      return root;
+   }
+
+   static MyRectangle leaf(MyRectangle r) {
+      while (r.getChildCount() > 0)
+         r = r.getChild();
+      return r;
+   }
+
+   static byte[] serialize(ArrayList<MouseEvent> events) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(events);
+      out.close();
+      return bytes.toByteArray();
+   }
+
+   static ByteBuffer encode(ArrayList<MouseEvent> events, ByteBuffer buf) {
+      buf.clear();
+      long base = events.get(0).getWhen();
+      EventLog.putHeader(buf, base);
+      for (MouseEvent e: events)
+         EventLog.putEvent(buf, e, base);
+      return buf;
+   }
+
+   /*
+    * Measure op, unless its name does not match the filter
+    */
+   static void run(String name, Op op) throws Exception {
+      if (!name.contains(filter))
+         return;
+      com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+      long thread = Thread.currentThread().getId();
+
+      long end = System.nanoTime() + WARMUP_MS * 1000000;
+      while (System.nanoTime() < end)
+         sink = op.run();
+
+      double[] nsPerOp = new double[ITERATIONS];
+      double bytesPerOp = 0;
+      for (int it = 0; it < ITERATIONS; it++) {
+         long ops = 0;
+         long bytes = threads.getThreadAllocatedBytes(thread);
+         long start = System.nanoTime();
+         end = start + MEASURE_MS * 1000000;
+         long now;
+         do {
+            sink = op.run();
+            ops++;
+         } while ((now = System.nanoTime()) < end);
+         nsPerOp[it] = (double)(now - start) / ops;
+         bytesPerOp += (double)(threads.getThreadAllocatedBytes(thread) - bytes) / ops;
+      }
+
+      double mean = 0, var = 0;
+      for (double d: nsPerOp)
+         mean += d / ITERATIONS;
+      for (double d: nsPerOp)
+         var += (d - mean) * (d - mean) / (ITERATIONS - 1);
+      System.out.printf("%-48s %14.1f %10.1f %12.1f%n", name, mean,
+            Math.sqrt(var), bytesPerOp / ITERATIONS);
+   }
+}
@@ -0,0 +1,137 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The fleet simulation keeps the joints within the limits DrawingPanel
+ * applies to the user, also when it is stopped and started again, and its
+ * world transforms are those of the local transforms it gives.
+ */
+public class FleetSimulationTest {
+
+   private static final int DIGGERS = 5;
+   private static final int[] JOINT_TYPES = {
+      DrawingPanel.SCALE_ARM, DrawingPanel.BENT_ARM, DrawingPanel.BUCKET
+   };
+   private static final int[] JOINT_MIN = {
+      DrawingPanel.SCALE_MIN, DrawingPanel.BENT_MIN, DrawingPanel.BUCKET_MIN
+   };
+   private static final int[] JOINT_MAX = {
+      DrawingPanel.SCALE_MAX, DrawingPanel.BENT_MAX, DrawingPanel.BUCKET_MAX
+   };
+
+   private final SceneStore store = new SceneStore();
+   private final ArrayList<SceneStore.Rig> rigs = new ArrayList<SceneStore.Rig>();
+   private final ArrayList<AffineTransform> placements = new ArrayList<AffineTransform>();
+
+   public FleetSimulationTest() {
+      SceneStore.Rig digger = store.add(DrawingPanel.makeDigger());
+      rigs.add(digger);
+      placements.add(new AffineTransform());
+      for (int k = 1; k < DIGGERS; k++) {
+         rigs.add(store.add(digger));
+         placements.add(AffineTransform.getTranslateInstance(300 * k, 0));
+      }
+   }
+
+   private FleetSimulation simulate() {
+      return new FleetSimulation(store, rigs, placements, new Rectangle(390, 180, 25, 30),
+            new Rectangle(-5, -150, 230, 285), 12, null);
+   }
+
+   private int jointNode(int k, int j) {
+      SceneStore.Rig rig = rigs.get(k);
+      for (int i = rig.getFirst(); i < rig.getFirst() + rig.getNodeCount(); i++)
+         if (store.getType(i) == JOINT_TYPES[j])
+            return i;
+      throw new AssertionError("No joint " + j + " in digger " + k);
+   }
+
+   /*
+    * Steps the joint of node turned from the pose of makeDigger, measured
+    * on its local transform
+    */
+   private int stepsFromDigger(int node, AffineTransform digger) throws NoninvertibleTransformException {
+      AffineTransform t = new AffineTransform();
+      store.getLocal(node, t);
+      t.preConcatenate(digger.createInverse());
+      double angle = Math.atan2(t.getShearY(), t.getScaleX());
+      return (int)Math.round(-angle / DrawingPanel.JOINT_STEP);
+   }
+
+   @Test
+   public void jointsStayWithinLimitsAcrossRestarts() throws NoninvertibleTransformException {
+      AffineTransform[] digger = new AffineTransform[3];
+      for (int j = 0; j < 3; j++) {
+         digger[j] = new AffineTransform();
+         store.getLocal(jointNode(0, j), digger[j]);
+      }
+
+      for (int run = 0; run < 20; run++) {
+         FleetSimulation simulation = simulate();
+         FleetSimulation.Snapshot s = null;
+         for (int t = 0; t < 37; t++) {
+            simulation.tick();
+            s = simulation.snapshot();
+            s.copyTo(store);
+         }
+         simulation.stop();
+
+         for (int k = 0; k < DIGGERS; k++)
+            for (int j = 0; j < 3; j++) {
+               int node = jointNode(k, j);
+               int steps = stepsFromDigger(node, digger[j]);
+               String where = "run " + run + " digger " + k + " joint " + j;
+               assertTrue(steps >= JOINT_MIN[j] && steps <= JOINT_MAX[j], where + " at " + steps);
+               assertEquals(steps, s.getTurn(k, j), where);
+               assertEquals(steps, store.getTurn(node), where);
+            }
+      }
+   }
+
+   @Test
+   public void worldTransformsComposeTheLocalOnes() {
+      FleetSimulation simulation = simulate();
+      for (int t = 0; t < 15; t++)
+         simulation.tick();
+      simulation.snapshot().copyTo(store);
+      simulation.stop();
+
+      AffineTransform[] world = new AffineTransform[store.size()];
+      AffineTransform t = new AffineTransform();
+      double[] expected = new double[6], actual = new double[6];
+      for (int i = 0; i < store.size(); i++) {
+         int p = store.getParent(i);
+         world[i] = p < 0 ? new AffineTransform() : new AffineTransform(world[p]);
+         store.getLocal(i, t);
+         world[i].concatenate(t);
+         store.getWorld(i, t);
+         world[i].getMatrix(expected);
+         t.getMatrix(actual);
+         assertArrayEquals(expected, actual, 1e-9, "node " + i);
+      }
+   }
+
+   @Test
+   public void restartCarriesOnFromTheLastPose() {
+      FleetSimulation simulation = simulate();
+      for (int t = 0; t < 10; t++)
+         simulation.tick();
+      simulation.snapshot().copyTo(store);
+      simulation.stop();
+
+      int[] before = new int[3];
+      for (int j = 0; j < 3; j++)
+         before[j] = store.getTurn(jointNode(0, j));
+      simulation = simulate();
+      simulation.tick();
+      FleetSimulation.Snapshot s = simulation.snapshot();
+      simulation.stop();
+      for (int j = 0; j < 3; j++)
+         assertEquals(1, Math.abs(s.getTurn(0, j) - before[j]), "joint " + j);
+   }
+}
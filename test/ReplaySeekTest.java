@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Rectangle;
+import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Seeking a replay to a time gives the pose of playing the recording from
+ * its start to that time, whether the seek goes forward or back and from
+ * a pose snapshot or from the start.
+ */
+public class ReplaySeekTest {
+
+   private static final int EVENTS = 1500;
+   private static final int EVENT_MS = 100;
+   // Around the digger at rest, in its coordinates, where presses select
+   // its parts
+   private static final Rectangle DIGGER = new Rectangle(0, -200, 380, 300);
+
+   private final Path dir;
+   private final String file;
+
+   public ReplaySeekTest() throws IOException {
+      dir = Files.createTempDirectory("replay");
+      file = dir.resolve("events").toString();
+   }
+
+   @AfterEach
+   public void deleteRecording() throws IOException {
+      for (File f: dir.toFile().listFiles())
+         Files.delete(f.toPath());
+      Files.delete(dir);
+   }
+
+   /*
+    * Record random presses, drags and keys, with their pose snapshots, as
+    * DrawingPanel records them
+    */
+   private void record() throws IOException {
+      DrawingPanel model = new DrawingPanel();
+      model.stopAnimation();
+      model.setSize(Digger.FRAME_WIDTH, Digger.FRAME_HEIGHT);
+      long base = 1000000;
+      EventRecorder recorder = new EventRecorder(file, base, model.getPose().getShapeCount());
+      Random random = new Random(341);
+      int x = 0, y = 0;
+      for (int i = 0; i < EVENTS; i++) {
+         long when = base + (i + 1) * EVENT_MS;
+         InputEvent e;
+         int kind = random.nextInt(10);
+         if (kind < 3) {
+            // Mostly on the digger
+            Pose p = model.getPose();
+            x = (int)p.objectTransform[4] + random.nextInt(DIGGER.width) + DIGGER.x;
+            y = (int)p.objectTransform[5] + random.nextInt(DIGGER.height) + DIGGER.y;
+            e = new MouseEvent(model, MouseEvent.MOUSE_PRESSED, when, 0, x, y, 1, false,
+                  MouseEvent.BUTTON1);
+         } else if (kind < 9) {
+            x += random.nextInt(61) - 30;
+            y += random.nextInt(61) - 30;
+            int steps = random.nextInt(9) - 4;
+            e = new DragDelta(model, when, x, y, steps, Math.min(0, steps) - random.nextInt(3),
+                  Math.max(0, steps) + random.nextInt(3));
+         } else
+            e = new KeyEvent(model, KeyEvent.KEY_PRESSED, when, 0, KeyEvent.VK_UNDEFINED,
+                  random.nextBoolean() ? 'l' : 'k');
+         if (recorder.isSnapshotDue(when))
+            recorder.snapshot(model.getPose(), when);
+         recorder.append(e);
+         model.replayEvent(e);
+      }
+      recorder.close();
+   }
+
+   /*
+    * Pose after playing the events before time on a new panel
+    */
+   private Pose played(ReplayEngine engine, long time) {
+      DrawingPanel panel = new DrawingPanel();
+      panel.stopAnimation();
+      panel.setSize(Digger.FRAME_WIDTH, Digger.FRAME_HEIGHT);
+      for (int i = 0; i < engine.indexOf(time); i++)
+         panel.replayEvent(engine.getEvent(i));
+      return panel.getPose();
+   }
+
+   /*
+    * Pose displayed after seeking the replay of display to time
+    */
+   private Pose seeked(final DrawingPanel display, ReplayEngine engine, long time) throws Exception {
+      display.seekReplay(time);
+      engine.advance();
+      final Pose[] pose = new Pose[1];
+      SwingUtilities.invokeAndWait(new Runnable() {
+         public void run() {
+            display.frame(System.nanoTime());
+            pose[0] = display.getPose();
+         }
+      });
+      return pose[0];
+   }
+
+   private static void assertSamePose(Pose expected, Pose actual, String where) {
+      assertArrayEquals(expected.objectTransform, actual.objectTransform, 1e-9, where);
+      for (int i = 0; i < expected.getShapeCount(); i++)
+         assertArrayEquals(expected.trans[i], actual.trans[i], 1e-9, where + " shape " + i);
+      assertEquals(expected.rotateNumScale, actual.rotateNumScale, where);
+      assertEquals(expected.rotateNumBent, actual.rotateNumBent, where);
+      assertEquals(expected.rotateNumBucket, actual.rotateNumBucket, where);
+      assertEquals(expected.scaleNumArm, actual.scaleNumArm, where);
+      assertEquals(expected.selected, actual.selected, where);
+      assertEquals(expected.botSelected, actual.botSelected, where);
+   }
+
+   @Test
+   public void seekGivesThePoseOfPlayingToTheTime() throws Exception {
+      record();
+      DrawingPanel display = new DrawingPanel();
+      display.stopAnimation();
+      display.setSize(Digger.FRAME_WIDTH, Digger.FRAME_HEIGHT);
+      ReplayEngine engine = display.openReplay(file);
+      assertNotNull(engine);
+      // Slow enough that the event after a seek is not due in advance
+      engine.setSpeed(ReplayEngine.MIN_SPEED);
+      Pose start = played(engine, 0);
+
+      boolean moved = false;
+      // Forward, back to before the first snapshot, and across snapshots
+      long[] times = {75000, 120000, 500, 52000, 149900, 50000, 0};
+      for (long time: times) {
+         // Between two events: the one at time is not due yet
+         time += EVENT_MS / 2;
+         Pose expected = played(engine, time);
+         assertSamePose(expected, seeked(display, engine, time), "at " + time + " ms");
+         moved |= !Arrays.equals(expected.objectTransform, start.objectTransform)
+               || expected.rotateNumBucket != start.rotateNumBucket;
+      }
+      assertTrue(moved, "the recording never moves the digger");
+      display.stopReplay();
+   }
+}
@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.geom.*;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Composing depth by depth gives the world transforms of composing node
+ * by node, to the bit.
+ */
+public class TransformBatchTest {
+
+   private static final int NODES = 500;
+
+   /*
+    * Random forest: each node is a root or the child of a node before it
+    */
+   private static int[] parents(Random random) {
+      int[] parents = new int[NODES];
+      for (int i = 0; i < NODES; i++)
+         parents[i] = i == 0 || random.nextInt(8) == 0 ? -1 : random.nextInt(i);
+      return parents;
+   }
+
+   private static AffineTransform randomTransform(Random random) {
+      AffineTransform t = AffineTransform.getTranslateInstance(random.nextDouble() * 200 - 100,
+            random.nextDouble() * 200 - 100);
+      t.rotate(random.nextDouble() * 2 * Math.PI);
+      t.scale(0.5 + random.nextDouble(), 0.5 + random.nextDouble());
+      return t;
+   }
+
+   private static double[][] worlds(TransformBatch batch) {
+      double[][] worlds = new double[NODES][6];
+      for (int i = 0; i < NODES; i++)
+         batch.getWorld(i, worlds[i], 0);
+      return worlds;
+   }
+
+   @Test
+   public void updateMatchesUpdateScalar() {
+      Random random = new Random(341);
+      for (int run = 0; run < 10; run++) {
+         TransformBatch batch = new TransformBatch(parents(random), NODES);
+         for (int i = 0; i < NODES; i++)
+            batch.setLocal(i, randomTransform(random));
+         batch.update();
+         double[][] byDepth = worlds(batch);
+         batch.updateScalar();
+         double[][] byNode = worlds(batch);
+         for (int i = 0; i < NODES; i++)
+            assertArrayEquals(byNode[i], byDepth[i], "run " + run + " node " + i);
+      }
+   }
+
+   @Test
+   public void updateComposesTheLocalTransforms() {
+      Random random = new Random(20);
+      int[] parents = parents(random);
+      TransformBatch batch = new TransformBatch(parents, NODES);
+      AffineTransform[] world = new AffineTransform[NODES];
+      for (int i = 0; i < NODES; i++) {
+         AffineTransform t = randomTransform(random);
+         batch.setLocal(i, t);
+         world[i] = parents[i] < 0 ? new AffineTransform() : new AffineTransform(world[parents[i]]);
+         world[i].concatenate(t);
+      }
+      batch.update();
+      AffineTransform t = new AffineTransform();
+      double[] expected = new double[6], actual = new double[6];
+      for (int i = 0; i < NODES; i++) {
+         batch.getWorld(i, t);
+         t.getMatrix(actual);
+         world[i].getMatrix(expected);
+         assertArrayEquals(expected, actual, 1e-9, "node " + i);
+      }
+   }
+}